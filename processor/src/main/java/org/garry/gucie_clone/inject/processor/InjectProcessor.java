@@ -0,0 +1,480 @@
+package org.garry.gucie_clone.inject.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a {@code GeneratedInjector} for each class with {@code @Inject}
+ * constructors, fields or methods, so the container doesn't have to scan
+ * the class at runtime.
+ *
+ * Classes whose injected members or dependency types the generated code can't
+ * reach (private members, members of superclasses in other packages, generic
+ * dependency types, ...) are skipped and fall back to reflection at runtime.
+ */
+@SupportedAnnotationTypes(InjectProcessor.INJECT)
+public class InjectProcessor extends AbstractProcessor {
+
+    static final String INJECT = "org.garry.gucie_clone.inject.Inject";
+
+    static final String GENERATED_INJECTOR = "org.garry.gucie_clone.inject.GeneratedInjector";
+
+    static final String SUFFIX = "$$Injector";
+
+    static final String INDEX = "META-INF/gucie_clone/generated-injectors";
+
+    static final String DEFAULT_NAME = "default";
+
+    final Set<String> generated = new HashSet<>();
+
+    /**
+     * Binary names of the types injectors were written for, and the types
+     * themselves
+     */
+    final Set<String> indexed = new LinkedHashSet<>();
+    final List<Element> indexedTypes = new ArrayList<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+            return false;
+        }
+
+        TypeElement inject = processingEnv.getElementUtils().getTypeElement(INJECT);
+        if (inject == null) {
+            return false;
+        }
+
+        Set<TypeElement> types = new LinkedHashSet<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(inject)) {
+            switch (element.getKind()) {
+                case FIELD:
+                case METHOD:
+                case CONSTRUCTOR:
+                    types.add((TypeElement) element.getEnclosingElement());
+                    break;
+                default:
+                    // parameters are handled with their method or constructor
+            }
+        }
+
+        for (TypeElement type : types) {
+            String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+            String name = binaryName + SUFFIX;
+            if (generated.add(name) && generate(type, name)) {
+                indexed.add(binaryName);
+                indexedTypes.add(type);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lists the types with generated injectors, so the container only looks
+     * for injectors of those
+     */
+    void writeIndex() {
+        if (indexed.isEmpty()) {
+            return;
+        }
+        try {
+            Writer writer = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                    "", INDEX, indexedTypes.toArray(new Element[indexedTypes.size()])).openWriter();
+            try {
+                for (String type : indexed) {
+                    writer.write(type);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write " + INDEX + ": " + e);
+        }
+    }
+
+    /**
+     * Generates an injector for the given type unless it can't be injected
+     * without reflection. Returns true if it wrote one
+     */
+    boolean generate(TypeElement type, String name) {
+        if (type.getKind() != ElementKind.CLASS
+                || type.getModifiers().contains(Modifier.ABSTRACT)
+                || !isAccessible(type)) {
+            return false;
+        }
+
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        ExecutableElement constructor = findConstructor(type);
+        if (constructor == null || !isAccessible(constructor, pkg)) {
+            return false;
+        }
+
+        List<Dependency> constructorParameters = parameters(constructor);
+        List<Member> members = new ArrayList<>();
+        if (constructorParameters == null || !addMembers(type, pkg, members)) {
+            return false;
+        }
+        for (Dependency dependency : constructorParameters) {
+            if (!isUsable(dependency.type, pkg)) {
+                return false;
+            }
+        }
+        for (Member member : members) {
+            for (Dependency dependency : member.parameters) {
+                if (!isUsable(dependency.type, pkg)) {
+                    return false;
+                }
+            }
+        }
+
+        try {
+            Writer writer = processingEnv.getFiler().createSourceFile(name, type).openWriter();
+            try {
+                write(writer, pkg, type, name, constructorParameters, members);
+            } finally {
+                writer.close();
+            }
+            return true;
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write " + name + ": " + e, type);
+            return false;
+        }
+    }
+
+    /**
+     * Finds the constructor annotated with {@code @Inject}, or the no-arg
+     * constructor
+     */
+    ExecutableElement findConstructor(TypeElement type) {
+        ExecutableElement found = null;
+        ExecutableElement noArg = null;
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (findInject(constructor) != null) {
+                if (found != null) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "More than one constructor annotated with @Inject found in "
+                                    + type + ".", constructor);
+                    return null;
+                }
+                found = constructor;
+            } else if (constructor.getParameters().isEmpty()) {
+                noArg = constructor;
+            }
+        }
+        return found != null ? found : noArg;
+    }
+
+    /**
+     * Adds the injected instance fields and methods of the given type and its
+     * superclasses, superclass members first. Returns false if one of them
+     * isn't accessible from the generated injector
+     */
+    boolean addMembers(TypeElement type, PackageElement pkg, List<Member> members) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            TypeElement superType = (TypeElement) ((DeclaredType) superclass).asElement();
+            if (!superType.getQualifiedName().contentEquals(Object.class.getName())
+                    && !addMembers(superType, pkg, members)) {
+                return false;
+            }
+        }
+
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            AnnotationMirror inject = findInject(field);
+            if (inject == null || field.getModifiers().contains(Modifier.STATIC)) {
+                continue;
+            }
+            if (!isAccessible(field, pkg) || field.getModifiers().contains(Modifier.FINAL)) {
+                return false;
+            }
+            List<Dependency> parameters = new ArrayList<>();
+            parameters.add(new Dependency(field.asType(), value(inject)));
+            members.add(new Member(field, required(inject), parameters));
+        }
+
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            AnnotationMirror inject = findInject(method);
+            if (inject == null || method.getModifiers().contains(Modifier.STATIC)) {
+                continue;
+            }
+            List<Dependency> parameters = parameters(method);
+            if (!isAccessible(method, pkg) || parameters == null) {
+                return false;
+            }
+            members.add(new Member(method, required(inject), parameters));
+        }
+        return true;
+    }
+
+    /**
+     * Gets the dependencies of a method or constructor. Parameters without
+     * {@code @Inject} use the name from the method's annotation. Returns null
+     * if the method has no parameters to inject
+     */
+    List<Dependency> parameters(ExecutableElement method) {
+        AnnotationMirror inject = findInject(method);
+        if (inject == null) {
+            // no-arg constructor
+            return new ArrayList<>();
+        }
+        if (method.getParameters().isEmpty()) {
+            return method.getKind() == ElementKind.CONSTRUCTOR ? new ArrayList<Dependency>() : null;
+        }
+
+        String defaultName = value(inject);
+        List<Dependency> parameters = new ArrayList<>();
+        for (VariableElement parameter : method.getParameters()) {
+            AnnotationMirror parameterInject = findInject(parameter);
+            parameters.add(new Dependency(parameter.asType(),
+                    parameterInject == null ? defaultName : value(parameterInject)));
+        }
+        return parameters;
+    }
+
+    AnnotationMirror findInject(Element element) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(INJECT)) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    String value(AnnotationMirror inject) {
+        Object value = attribute(inject, "value");
+        return value == null ? DEFAULT_NAME : (String) value;
+    }
+
+    boolean required(AnnotationMirror inject) {
+        Object required = attribute(inject, "required");
+        return required == null || (Boolean) required;
+    }
+
+    Object attribute(AnnotationMirror annotation, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : processingEnv.getElementUtils().getElementValuesWithDefaults(annotation).entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the generated injector can name the given type
+     */
+    boolean isAccessible(TypeElement type) {
+        if (type.getNestingKind() == NestingKind.LOCAL
+                || type.getNestingKind() == NestingKind.ANONYMOUS) {
+            return false;
+        }
+        for (Element e = type; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (e.getEnclosingElement().getKind() != ElementKind.PACKAGE
+                    && !e.getModifiers().contains(Modifier.STATIC)) {
+                // inner classes need an outer instance
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the generated injector, which lives in {@code pkg}, can
+     * access the given member
+     */
+    boolean isAccessible(Element member, PackageElement pkg) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        return modifiers.contains(Modifier.PUBLIC)
+                || processingEnv.getElementUtils().getPackageOf(member).equals(pkg);
+    }
+
+    /**
+     * Returns true if the given dependency type can be written as a class literal
+     * in {@code pkg}
+     */
+    boolean isUsable(TypeMirror type, PackageElement pkg) {
+        if (type.getKind().isPrimitive()) {
+            return true;
+        }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return isUsable(((ArrayType) type).getComponentType(), pkg);
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        DeclaredType declaredType = (DeclaredType) type;
+        if (!declaredType.getTypeArguments().isEmpty()) {
+            // the container only sees raw types
+            return false;
+        }
+        TypeElement element = (TypeElement) declaredType.asElement();
+        for (Element e = element; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (!isAccessible(e, pkg)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(Writer writer, PackageElement pkg, TypeElement type, String name,
+               List<Dependency> constructorParameters, List<Member> members) throws IOException {
+        String typeName = type.getQualifiedName().toString();
+        String simpleName = pkg.isUnnamed() ? name : name.substring(pkg.getQualifiedName().length() + 1);
+
+        StringBuilder out = new StringBuilder();
+        if (!pkg.isUnnamed()) {
+            out.append("package ").append(pkg.getQualifiedName()).append(";\n\n");
+        }
+        out.append("/**\n * Generated by ").append(InjectProcessor.class.getName())
+                .append(". Do not edit.\n */\n");
+        out.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        out.append("public final class ").append(simpleName)
+                .append(" extends ").append(GENERATED_INJECTOR).append("<").append(typeName).append("> {\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public Dependency[] constructorParameters() {\n");
+        out.append("        return new Dependency[] {");
+        appendDependencies(out, constructorParameters);
+        out.append("};\n    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public InjectionPoint[] members() {\n");
+        out.append("        return new InjectionPoint[] {");
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get(i);
+            out.append(i == 0 ? "\n" : ",\n");
+            out.append("            InjectionPoint.")
+                    .append(member.element.getKind() == ElementKind.FIELD ? "field" : "method")
+                    .append("(\"").append(member.element.getSimpleName()).append("\", ")
+                    .append(member.required).append(", ");
+            appendDependencies(out, member.parameters);
+            out.append(")");
+        }
+        out.append(members.isEmpty() ? "};\n" : "\n        };\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public ").append(typeName).append(" newInstance(Object[] arguments) throws Throwable {\n");
+        out.append("        return new ").append(typeName).append("(");
+        appendArguments(out, constructorParameters);
+        out.append(");\n    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public void inject(int member, ").append(typeName)
+                .append(" instance, Object[] arguments) throws Throwable {\n");
+        out.append("        switch (member) {\n");
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get(i);
+            out.append("            case ").append(i).append(":\n");
+            out.append("                instance.").append(member.element.getSimpleName());
+            if (member.element.getKind() == ElementKind.FIELD) {
+                out.append(" = ");
+                appendArguments(out, member.parameters);
+                out.append(";\n");
+            } else {
+                out.append("(");
+                appendArguments(out, member.parameters);
+                out.append(");\n");
+            }
+            out.append("                return;\n");
+        }
+        out.append("            default:\n");
+        out.append("                throw new IndexOutOfBoundsException(String.valueOf(member));\n");
+        out.append("        }\n    }\n}\n");
+
+        writer.write(out.toString());
+    }
+
+    void appendDependencies(StringBuilder out, List<Dependency> dependencies) {
+        for (int i = 0; i < dependencies.size(); i++) {
+            Dependency dependency = dependencies.get(i);
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append("new Dependency(").append(typeName(dependency.type)).append(".class, ")
+                    .append(processingEnv.getElementUtils().getConstantExpression(dependency.name))
+                    .append(")");
+        }
+    }
+
+    void appendArguments(StringBuilder out, List<Dependency> dependencies) {
+        for (int i = 0; i < dependencies.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append("(").append(typeName(dependencies.get(i).type))
+                    .append(") arguments[").append(i).append("]");
+        }
+    }
+
+    String typeName(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    static class Dependency {
+
+        final TypeMirror type;
+        final String name;
+
+        Dependency(TypeMirror type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+    }
+
+    static class Member {
+
+        final Element element;
+        final boolean required;
+        final List<Dependency> parameters;
+
+        Member(Element element, boolean required, List<Dependency> parameters) {
+            this.element = element;
+            this.required = required;
+            this.parameters = parameters;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.garry.guice_clone.inject.processor;
+
+import junit.framework.TestCase;
+import org.garry.gucie_clone.inject.Container;
+import org.garry.gucie_clone.inject.ContainerBuilder;
+import org.garry.gucie_clone.inject.Context;
+import org.garry.gucie_clone.inject.Factory;
+import org.garry.gucie_clone.inject.GeneratedInjector;
+import org.garry.gucie_clone.inject.Inject;
+import org.garry.gucie_clone.inject.processor.InjectProcessor;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Compiles sample classes with the processor, then injects them with a
+ * container
+ */
+public class InjectProcessorTest extends TestCase {
+
+    static final String[][] SAMPLES = {
+            {"sample/Service.java",
+                    "package sample;\n"
+                    + "public class Service {}\n"},
+            {"sample/Base.java",
+                    "package sample;\n"
+                    + "import org.garry.gucie_clone.inject.Inject;\n"
+                    + "public class Base {\n"
+                    + "    @Inject Service baseField;\n"
+                    + "    Service baseMethod;\n"
+                    + "    @Inject void setBaseMethod(Service service) { baseMethod = service; }\n"
+                    + "}\n"},
+            {"sample/Client.java",
+                    "package sample;\n"
+                    + "import org.garry.gucie_clone.inject.Inject;\n"
+                    + "public class Client extends Base {\n"
+                    + "    final Service service;\n"
+                    + "    final String name;\n"
+                    + "    int number;\n"
+                    + "    @Inject(value = \"missing\", required = false) Service optional;\n"
+                    + "    @Inject Client(Service service, @Inject(\"name\") String name) {\n"
+                    + "        this.service = service;\n"
+                    + "        this.name = name;\n"
+                    + "    }\n"
+                    + "    @Inject(\"number\") void setNumber(int number) { this.number = number; }\n"
+                    + "}\n"},
+            {"sample/Hidden.java",
+                    "package sample;\n"
+                    + "import org.garry.gucie_clone.inject.Inject;\n"
+                    + "public class Hidden {\n"
+                    + "    @Inject private Service service;\n"
+                    + "}\n"},
+    };
+
+    File root;
+    File classes;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = Files.createTempDirectory("inject-processor").toFile();
+        classes = new File(root, "classes");
+        File generated = new File(root, "generated");
+        classes.mkdirs();
+        generated.mkdirs();
+
+        List<File> sources = new ArrayList<>();
+        for (String[] sample : SAMPLES) {
+            File source = new File(root, "src/" + sample[0]);
+            source.getParentFile().mkdirs();
+            Files.write(source.toPath(), sample[1].getBytes(StandardCharsets.UTF_8));
+            sources.add(source);
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager =
+                compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        try {
+            String classpath = new File(Inject.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI()).getPath();
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-d", classes.getPath(), "-s", generated.getPath(),
+                            "-classpath", classpath),
+                    null, fileManager.getJavaFileObjectsFromFiles(sources));
+            task.setProcessors(Collections.singletonList(new InjectProcessor()));
+            assertTrue(diagnostics.getDiagnostics().toString(), task.call());
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(root);
+    }
+
+    public void testGeneratesInjectorsAndIndex() throws IOException {
+        assertTrue(new File(classes, "sample/Client" + GeneratedInjector.SUFFIX + ".class").exists());
+        assertTrue(new File(classes, "sample/Base" + GeneratedInjector.SUFFIX + ".class").exists());
+        // private members need reflection
+        assertFalse(new File(classes, "sample/Hidden" + GeneratedInjector.SUFFIX + ".class").exists());
+
+        List<String> index = Files.readAllLines(
+                new File(classes, GeneratedInjector.INDEX).toPath(), StandardCharsets.UTF_8);
+        assertEquals(new HashSet<>(Arrays.asList("sample.Base", "sample.Client")),
+                new HashSet<>(index));
+    }
+
+    public void testInjectsThroughGeneratedInjector() throws Exception {
+        ClassLoader loader = newClassLoader();
+        Class<?> client = loader.loadClass("sample.Client");
+        List<Member> members = new ArrayList<>();
+        Container container = newContainer(loader, members)
+                .factory((Class) client, (Class) client)
+                .create(false);
+
+        Object instance = container.getInstance(client);
+        assertNotNull(get(instance, "service"));
+        assertEquals("test", get(instance, "name"));
+        assertEquals(5, get(instance, "number"));
+        assertNull(get(instance, "optional"));
+        // superclass members
+        assertNotNull(get(instance, "baseField"));
+        assertNotNull(get(instance, "baseMethod"));
+
+        // generated injectors don't expose members
+        assertEquals(Arrays.asList(null, null, null), members);
+    }
+
+    public void testFallsBackToReflection() throws Exception {
+        ClassLoader loader = newClassLoader();
+        Class<?> hidden = loader.loadClass("sample.Hidden");
+        List<Member> members = new ArrayList<>();
+        Container container = newContainer(loader, members)
+                .factory((Class) hidden, (Class) hidden)
+                .create(false);
+
+        Object instance = container.getInstance(hidden);
+        assertNotNull(get(instance, "service"));
+        assertEquals(1, members.size());
+        assertEquals("service", members.get(0).getName());
+    }
+
+    ClassLoader newClassLoader() throws IOException {
+        return new URLClassLoader(new URL[] {classes.toURI().toURL()},
+                getClass().getClassLoader());
+    }
+
+    /**
+     * Binds the sample service, recording the member each instance is
+     * injected into
+     */
+    static ContainerBuilder newContainer(ClassLoader loader, final List<Member> members)
+            throws ClassNotFoundException {
+        final Class<?> service = loader.loadClass("sample.Service");
+        return new ContainerBuilder()
+                .factory((Class) service, new Factory<Object>() {
+                    @Override
+                    public Object create(Context context) throws Exception {
+                        members.add(context.getMember());
+                        return service.getDeclaredConstructor().newInstance();
+                    }
+                })
+                .constant("name", "test")
+                .constant("number", 5);
+    }
+
+    static Object get(Object instance, String name) throws Exception {
+        for (Class<?> c = instance.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(instance);
+            } catch (NoSuchFieldException e) {
+                // try the superclass
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,75 @@
+package org.garry.guice_clone.inject;
+
+import org.garry.gucie_clone.inject.Container;
+import org.garry.gucie_clone.inject.ContainerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures {@link Container#getInstance(Class, String)} per scope. Request
+ * lookups hit a request arena which lives for the whole iteration
+ */
+@State(Scope.Benchmark)
+public class GetInstanceBenchmark {
+
+    Container container;
+
+    @Setup
+    public void setUp() {
+        container = new ContainerBuilder()
+                .factory(Service.class, "default", Service.class,
+                        org.garry.gucie_clone.inject.Scope.DEFAULT)
+                .factory(Service.class, "singleton", Service.class,
+                        org.garry.gucie_clone.inject.Scope.SINGLETON)
+                .factory(Service.class, "thread", Service.class,
+                        org.garry.gucie_clone.inject.Scope.THREAD)
+                .factory(Service.class, "request", Service.class,
+                        org.garry.gucie_clone.inject.Scope.REQUEST)
+                .create(true);
+    }
+
+    /**
+     * Sets a request arena as each benchmark thread's scope strategy
+     */
+    @State(Scope.Thread)
+    public static class Request {
+
+        Container container;
+
+        @Setup
+        public void setUp(GetInstanceBenchmark benchmark) {
+            container = benchmark.container;
+            container.setScopeStrategy(container.newRequestArena(null));
+        }
+
+        @TearDown
+        public void tearDown() {
+            container.removeScopeStrategy();
+        }
+    }
+
+    @Benchmark
+    public Service getDefault() {
+        return container.getInstance(Service.class, "default");
+    }
+
+    @Benchmark
+    public Service getSingleton() {
+        return container.getInstance(Service.class, "singleton");
+    }
+
+    @Benchmark
+    public Service getThread() {
+        return container.getInstance(Service.class, "thread");
+    }
+
+    @Benchmark
+    public Service getRequest(Request request) {
+        return request.container.getInstance(Service.class, "request");
+    }
+
+    static class Service {}
+}
@@ -0,0 +1,164 @@
+package org.garry.guice_clone.inject;
+
+import org.garry.gucie_clone.inject.Container;
+import org.garry.gucie_clone.inject.ContainerBuilder;
+import org.garry.gucie_clone.inject.Inject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link Container#inject(Class)} on shallow and deep graphs,
+ * {@link Container#inject(Object)} on an object with many fields, and calls
+ * through the proxy which breaks a circular dependency between constructors
+ */
+@State(Scope.Benchmark)
+public class InjectBenchmark {
+
+    Container container;
+
+    FieldHeavy fieldHeavy = new FieldHeavy();
+
+    A circular;
+
+    @Setup
+    public void setUp() {
+        container = new ContainerBuilder()
+                .factory(Leaf.class, Leaf.class)
+                .factory(Level1.class, Level1.class)
+                .factory(Level2.class, Level2.class)
+                .factory(Level3.class, Level3.class)
+                .factory(Level4.class, Level4.class)
+                .factory(A.class, AImpl.class)
+                .factory(B.class, BImpl.class)
+                .constant("s", "test")
+                .constant("i", 5)
+                .create(false);
+
+        // a gets the real b, b gets a proxy of a
+        circular = container.inject(AImpl.class);
+    }
+
+    @Benchmark
+    public Leaf injectShallow() {
+        return container.inject(Leaf.class);
+    }
+
+    @Benchmark
+    public Level4 injectDeep() {
+        return container.inject(Level4.class);
+    }
+
+    @Benchmark
+    public FieldHeavy injectFields() {
+        container.inject(fieldHeavy);
+        return fieldHeavy;
+    }
+
+    @Benchmark
+    public int circularProxyCall() {
+        return circular.getB().getA().value();
+    }
+
+    static class Leaf {}
+
+    static class Level1 {
+        final Leaf a;
+        final Leaf b;
+
+        @Inject
+        Level1(Leaf a, Leaf b) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    static class Level2 {
+        final Level1 a;
+        final Level1 b;
+
+        @Inject
+        Level2(Level1 a, Level1 b) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    static class Level3 {
+        @Inject Level2 a;
+        @Inject Level2 b;
+    }
+
+    static class Level4 {
+        final Level3 a;
+        Level3 b;
+
+        @Inject
+        Level4(Level3 a) {
+            this.a = a;
+        }
+
+        @Inject
+        void setB(Level3 b) {
+            this.b = b;
+        }
+    }
+
+    static class FieldHeavy {
+        @Inject("s") String s1;
+        @Inject("s") String s2;
+        @Inject("s") String s3;
+        @Inject("s") String s4;
+        @Inject("i") int i1;
+        @Inject("i") int i2;
+        @Inject("i") int i3;
+        @Inject("i") int i4;
+        @Inject Leaf leaf1;
+        @Inject Leaf leaf2;
+        @Inject Container container;
+    }
+
+    public interface A {
+        B getB();
+
+        int value();
+    }
+
+    public interface B {
+        A getA();
+    }
+
+    static class AImpl implements A {
+        final B b;
+
+        @Inject
+        AImpl(B b) {
+            this.b = b;
+        }
+
+        @Override
+        public B getB() {
+            return b;
+        }
+
+        @Override
+        public int value() {
+            return 42;
+        }
+    }
+
+    static class BImpl implements B {
+        final A a;
+
+        @Inject
+        BImpl(A a) {
+            this.a = a;
+        }
+
+        @Override
+        public A getA() {
+            return a;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.garry.guice_clone.inject;
+
+import org.garry.gucie_clone.inject.Container;
+import org.garry.gucie_clone.inject.ContainerBuilder;
+import org.garry.gucie_clone.inject.Inject;
+import org.garry.gucie_clone.inject.Invocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares constructor invocation through reflection and method handles
+ */
+@State(Scope.Benchmark)
+public class InvocationBenchmark {
+
+    @Param({"REFLECTION", "METHOD_HANDLES"})
+    Invocation invocation;
+
+    Container container;
+
+    @Setup
+    public void setUp() {
+        container = new ContainerBuilder()
+                .invocation(invocation)
+                .factory(A.class, A.class)
+                .factory(B.class, B.class)
+                .create(false);
+    }
+
+    @Benchmark
+    public Root inject() {
+        return container.inject(Root.class);
+    }
+
+    static class A {
+        A() {}
+    }
+
+    static class B {
+        final A a;
+
+        @Inject
+        B(A a) {
+            this.a = a;
+        }
+    }
+
+    static class Root {
+        final A a;
+        final B b;
+
+        @Inject
+        Root(A a, B b) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.garry.guice_clone.inject.util;
+
+import org.garry.gucie_clone.inject.util.ReferenceCache;
+import org.garry.gucie_clone.inject.util.ReferenceType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link ReferenceCache} lookups of cached keys, and of keys which
+ * must be created and are then removed again
+ */
+@State(Scope.Benchmark)
+public class ReferenceCacheBenchmark {
+
+    static final int SIZE = 1024;
+
+    @Param({"STRONG", "WEAK"})
+    ReferenceType keyReferenceType;
+
+    ReferenceCache<Integer, String> cache;
+
+    Integer[] keys = new Integer[SIZE];
+
+    int next;
+
+    @Setup
+    public void setUp() {
+        cache = new ReferenceCache<Integer, String>(keyReferenceType, ReferenceType.STRONG) {
+            @Override
+            protected String create(Integer key) {
+                return key.toString();
+            }
+        };
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = i;
+            cache.get(keys[i]);
+        }
+    }
+
+    @Benchmark
+    public String hit() {
+        return cache.get(keys[next++ & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public String miss() {
+        Integer key = SIZE + (next++ & (SIZE - 1));
+        String value = cache.get(key);
+        cache.remove(key);
+        return value;
+    }
+}
@@ -0,0 +1,25 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A factory which creates objects to be injected without blocking, such as
+ * clients of remote services. Bind with
+ * {@link ContainerBuilder#asyncFactory(Class, String, AsyncFactory, Scope)}.
+ *
+ * {@link Container#getInstanceAsync(Class, String)} starts all the async
+ * factories an instance depends on at once, and injects the instance when
+ * they complete. Synchronous lookups wait for the factory's result
+ * @param <T>
+ */
+public interface AsyncFactory<T> {
+
+    /**
+     * Starts creating an object to be injected
+     * @param context of this injection. The member is null when the container
+     *  starts the factory ahead of an asynchronous lookup
+     * @return stage completed with the instance to be injected
+     * @throws Exception
+     */
+    CompletionStage<? extends T> create(Context context) throws Exception;
+}
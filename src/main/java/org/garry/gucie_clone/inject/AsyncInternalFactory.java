@@ -0,0 +1,100 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Adapts an {@link AsyncFactory}. Uses the future the container started for
+ * this binding ahead of an asynchronous lookup if there is one, and starts
+ * the factory and waits for it otherwise. Singleton bindings share one future
+ * between concurrent callers
+ */
+class AsyncInternalFactory<T> implements InternalFactory<T> {
+
+    final Class<T> type;
+    final String name;
+    final AsyncFactory<? extends T> factory;
+    final boolean singleton;
+
+    /**
+     * Future of a singleton binding. Cleared if it fails, so a later lookup
+     * tries again
+     */
+    final AtomicReference<CompletableFuture<T>> shared = new AtomicReference<>();
+
+    AsyncInternalFactory(Class<T> type, String name, AsyncFactory<? extends T> factory,
+                         boolean singleton) {
+        this.type = type;
+        this.name = name;
+        this.factory = factory;
+        this.singleton = singleton;
+    }
+
+    @Override
+    public T create(InternalContext context) {
+        CompletableFuture<T> future = context.getPrefetched(this);
+        if (future == null) {
+            future = start(context);
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Starts the factory, or joins the shared future of a singleton
+     */
+    CompletableFuture<T> start(InternalContext context) {
+        if (!singleton) {
+            return call(context);
+        }
+
+        CompletableFuture<T> future = shared.get();
+        if (future != null) {
+            return future;
+        }
+        final CompletableFuture<T> promise = new CompletableFuture<>();
+        if (!shared.compareAndSet(null, promise)) {
+            return shared.get();
+        }
+        call(context).whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T t, Throwable failure) {
+                if (failure != null) {
+                    shared.compareAndSet(promise, null);
+                    promise.completeExceptionally(failure);
+                } else {
+                    promise.complete(t);
+                }
+            }
+        });
+        return promise;
+    }
+
+    @SuppressWarnings("unchecked")
+    CompletableFuture<T> call(InternalContext context) {
+        try {
+            return (CompletableFuture<T>) factory.create(context.getExternalContext())
+                    .toCompletableFuture();
+        } catch (Exception e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    public String toString() {
+        return "[type=" + type.getName() + ", name='" + name + "', factory=" + factory + "]";
+    }
+}
@@ -0,0 +1,102 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the metrics of one binding. The builder wraps the binding's factory
+ * before and after scoping it: the inner wrapper counts instances created, and
+ * the outer one counts lookups and their latency. Counters are {@link LongAdder}s
+ * so concurrent lookups don't contend
+ */
+final class BindingMeter {
+
+    /**
+     * Bucket {@code i} counts latencies below {@code 2^i} nanoseconds, up to
+     * about 18 minutes
+     */
+    static final int BUCKETS = 41;
+
+    final Key<?> key;
+    final Scope scope;
+
+    final LongAdder lookups = new LongAdder();
+    final LongAdder creations = new LongAdder();
+    final LongAdder totalNanos = new LongAdder();
+    final LongAdder[] latencyHistogram = new LongAdder[BUCKETS];
+
+    BindingMeter(Key<?> key, Scope scope) {
+        this.key = key;
+        this.scope = scope;
+        for (int i = 0; i < BUCKETS; i++) {
+            latencyHistogram[i] = new LongAdder();
+        }
+    }
+
+    void recordLookup(long nanos) {
+        lookups.increment();
+        totalNanos.add(nanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos);
+        latencyHistogram[Math.min(bucket, BUCKETS - 1)].increment();
+    }
+
+    BindingMetrics snapshot() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = latencyHistogram[i].sum();
+        }
+        return new BindingMetrics(key.getType().getName(), key.getName(), scope,
+                lookups.sum(), creations.sum(), totalNanos.sum(), histogram);
+    }
+
+    /**
+     * Counts instances created by the unscoped factory
+     */
+    <T> InternalFactory<T> meterCreations(final InternalFactory<? extends T> factory) {
+        return new InternalFactory<T>() {
+            @Override
+            public T create(InternalContext context) {
+                T t = factory.create(context);
+                creations.increment();
+                return t;
+            }
+
+            @Override
+            public String toString() {
+                return factory.toString();
+            }
+        };
+    }
+
+    <T> InternalFactory<T> meterLookups(InternalFactory<? extends T> scoped) {
+        return new MeteredFactory<T>(this, scoped);
+    }
+
+    /**
+     * Counts lookups of the scoped factory and records their latency
+     */
+    static final class MeteredFactory<T> implements InternalFactory<T> {
+
+        final BindingMeter meter;
+        final InternalFactory<? extends T> scoped;
+
+        MeteredFactory(BindingMeter meter, InternalFactory<? extends T> scoped) {
+            this.meter = meter;
+            this.scoped = scoped;
+        }
+
+        @Override
+        public T create(InternalContext context) {
+            long start = System.nanoTime();
+            try {
+                return scoped.create(context);
+            } finally {
+                meter.recordLookup(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return scoped.toString();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * Snapshot of the metrics of one binding, recorded when metrics are enabled
+ * with {@link ContainerBuilder#metrics()}
+ * @see Container#getBindingMetrics()
+ */
+public final class BindingMetrics {
+
+    final String type;
+    final String name;
+    final Scope scope;
+    final long lookups;
+    final long creations;
+    final long totalNanos;
+    final long[] latencyHistogram;
+
+    BindingMetrics(String type, String name, Scope scope, long lookups,
+                   long creations, long totalNanos, long[] latencyHistogram) {
+        this.type = type;
+        this.name = name;
+        this.scope = scope;
+        this.lookups = lookups;
+        this.creations = creations;
+        this.totalNanos = totalNanos;
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    /**
+     * Name of the bound type
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    /**
+     * Number of times the binding was looked up, i.e. injected or gotten from
+     * the container
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Number of instances created. Lookups which didn't create an instance were
+     * served by the binding's scope
+     */
+    public long getCreations() {
+        return creations;
+    }
+
+    /**
+     * Number of lookups served by the binding's scope without creating an instance
+     */
+    public long getScopeHits() {
+        return Math.max(0, lookups - creations);
+    }
+
+    /**
+     * Total time spent in lookups, including the time spent creating dependencies
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Counts of lookups by latency. Bucket {@code i} counts lookups which took
+     * less than {@code 2^i} nanoseconds and, for {@code i > 0}, at least
+     * {@code 2^(i-1)}. The last bucket counts all slower lookups
+     */
+    public long[] getLatencyHistogram() {
+        return latencyHistogram.clone();
+    }
+
+    /**
+     * Estimates a latency percentile from the histogram. Returns the upper
+     * bound of the bucket holding the percentile, in nanoseconds
+     * @param percentile between 0 and 100
+     */
+    public long getLatencyPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+        }
+        long count = 0;
+        for (long bucket : latencyHistogram) {
+            count += bucket;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        for (int i = 0; i < latencyHistogram.length; i++) {
+            rank -= latencyHistogram[i];
+            if (rank <= 0 && latencyHistogram[i] > 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "BindingMetrics[type=" + type + ", name=" + name + ", scope=" + scope
+                + ", lookups=" + lookups + ", creations=" + creations
+                + ", totalNanos=" + totalNanos + "]";
+    }
+}
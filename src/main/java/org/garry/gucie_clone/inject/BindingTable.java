@@ -0,0 +1,102 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.Map;
+
+/**
+ * Immutable table of a container's bindings, built once the binding set is final.
+ * Gives each key a dense integer id and finds ids by type and name through an
+ * open addressing table with linear probing, so lookups neither allocate a
+ * {@link Key} nor walk hash buckets
+ */
+final class BindingTable {
+
+    final Key<?>[] keys;
+    final InternalFactory<?>[] factories;
+
+    /**
+     * Hash codes by id, checked before comparing names
+     */
+    final int[] hashes;
+
+    /**
+     * Open addressing table of ids plus one. Zero marks an empty slot
+     */
+    final int[] slots;
+    final int mask;
+
+    BindingTable(Map<Key<?>, InternalFactory<?>> bindings) {
+        int size = bindings.size();
+        keys = new Key<?>[size];
+        factories = new InternalFactory<?>[size];
+        hashes = new int[size];
+
+        // keep the load factor at or below one half
+        int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+
+        int id = 0;
+        for (Map.Entry<Key<?>, InternalFactory<?>> entry : bindings.entrySet()) {
+            Key<?> key = entry.getKey();
+            keys[id] = key;
+            factories[id] = entry.getValue();
+            hashes[id] = key.hashCode();
+
+            int slot = spread(key.hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = ++id;
+        }
+    }
+
+    /**
+     * Gets the id of the binding for the given type and name, or -1
+     */
+    int indexOf(Class<?> type, String name) {
+        int hashCode = Key.hashCode(type, name);
+        for (int slot = spread(hashCode) & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (hashes[id] == hashCode) {
+                Key<?> key = keys[id];
+                if (key.type == type && (key.name == name || key.name.equals(name))) {
+                    return id;
+                }
+            }
+        }
+    }
+
+    int indexOf(Key<?> key) {
+        return indexOf(key.type, key.name);
+    }
+
+    Key<?> getKey(int id) {
+        return keys[id];
+    }
+
+    InternalFactory<?> getFactory(int id) {
+        return factories[id];
+    }
+
+    /**
+     * Gets the factory for the given key, or null
+     */
+    InternalFactory<?> getFactory(Key<?> key) {
+        int id = indexOf(key);
+        return id < 0 ? null : factories[id];
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    /**
+     * Spreads higher bits of the hash code into the bits used as a slot index
+     */
+    static int spread(int hashCode) {
+        return hashCode ^ (hashCode >>> 16);
+    }
+}
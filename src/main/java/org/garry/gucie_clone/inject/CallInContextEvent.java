@@ -0,0 +1,34 @@
+package org.garry.gucie_clone.inject;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for an outermost call into a container, i.e.
+ * {@link Container#getInstance(Class)}. Nested calls are part of the outer one
+ */
+@Name("org.garry.inject.CallInContext")
+@Label("Container Call")
+@Category({"Dependency Injection", "Container"})
+@Description("Outermost call into a container")
+@Threshold("10 ms")
+final class CallInContextEvent extends jdk.jfr.Event {
+
+    @Label("Container")
+    @Description("Identity hash code of the container")
+    int container;
+
+    /**
+     * Ends the call and records the container it went to
+     */
+    void commit(Container container) {
+        end();
+        if (shouldCommit()) {
+            this.container = System.identityHashCode(container);
+            commit();
+        }
+    }
+}
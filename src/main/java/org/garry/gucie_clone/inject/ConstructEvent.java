@@ -0,0 +1,39 @@
+package org.garry.gucie_clone.inject;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for the construction of an instance, including the
+ * injection of its fields and methods
+ */
+@Name("org.garry.inject.Construct")
+@Label("Construct")
+@Category({"Dependency Injection", "Container"})
+@Description("Construction of an instance and injection of its members")
+@Threshold("1 ms")
+final class ConstructEvent extends jdk.jfr.Event {
+
+    @Label("Implementation")
+    Class<?> implementation;
+
+    @Label("Proxy")
+    @Description("Whether a proxy was returned to break a circular dependency")
+    boolean proxy;
+
+    /**
+     * Ends the construction. Nested constructions are separate events, so a
+     * slow dependency also shows up on its own
+     */
+    void commit(Class<?> implementation, boolean proxy) {
+        end();
+        if (shouldCommit()) {
+            this.implementation = implementation;
+            this.proxy = proxy;
+            commit();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package org.garry.gucie_clone.inject;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Injects dependencies into constructors, methods and fields annotated with {@link Inject}. Immutable
  *
@@ -54,6 +58,71 @@ public interface Container {
      */
     <T> T getInstance(Class<T> type);
 
+    /**
+     * Gets an instance of the given dependency without waiting for
+     * {@link AsyncFactory async factories}. Starts all the async factories the
+     * instance depends on at once, one per injection point, and injects the
+     * instance on the executor set with
+     * {@link ContainerBuilder#asyncExecutor(java.util.concurrent.Executor)}
+     * once they complete
+     * @param type
+     * @param name
+     * @param <T>
+     * @return future completed with the instance
+     * @throws DependencyException if no such dependency was declared
+     */
+    <T> CompletableFuture<T> getInstanceAsync(Class<T> type, String name);
+
+    /**
+     * Convenience method,Equivalent to {@code getInstanceAsync(type,DEFAULT_NAME)}
+     * @param type
+     * @param <T>
+     * @return
+     */
+    <T> CompletableFuture<T> getInstanceAsync(Class<T> type);
+
+    /**
+     * Gets a provider for the given dependency which was declared in
+     * {@link ContainerBuilder}. Resolves the dependency once, so use this
+     * instead of {@link #getInstance(Class, String)} in hot loops
+     * @param type
+     * @param name
+     * @param <T>
+     * @return
+     * @throws DependencyException if no such dependency was declared
+     */
+    <T> Provider<T> getProvider(Class<T> type, String name);
+
+    /**
+     * Convenience method,Equivalent to {@code getProvider(type,DEFAULT_NAME)}
+     * @param type
+     * @param <T>
+     * @return
+     */
+    <T> Provider<T> getProvider(Class<T> type);
+
+    /**
+     * Calls the given callable with the given scope strategy. Injections made
+     * through this container during the call use the strategy, and it isn't
+     * stored per thread, so nothing outlives the call. Takes precedence over
+     * {@link #setScopeStrategy(Scope.Strategy)}
+     * @param scopeStrategy
+     * @param callable
+     * @param <T>
+     * @return the callable's result
+     * @throws Exception thrown by the callable
+     */
+    <T> T callInScope(Scope.Strategy scopeStrategy, Callable<T> callable) throws Exception;
+
+    /**
+     * Creates a request arena, a scope strategy which keeps this container's
+     * {@link Scope#REQUEST} instances in an array. Create one per request and
+     * drop it when the request ends
+     * @param delegate strategy for session and wizard scopes, or null
+     * @return
+     */
+    RequestArena newRequestArena(Scope.Strategy delegate);
+
     /**
      * Sets the scope strategy for the current thread
      * @param scopeStrategy
@@ -64,4 +133,44 @@ public interface Container {
      * Removes the scope strategy for the current thread
      */
     void removeScopeStrategy();
+
+    /**
+     * Releases the {@link Scope#THREAD} and {@link Scope#PLATFORM_THREAD}
+     * instances of the given thread. Call when a pooled thread finishes a unit of work to start the next one afresh
+     * @param thread
+     */
+    void purgeThreadScope(Thread thread);
+
+    /**
+     * Releases the thread scoped instances of terminated threads. The
+     * container also sweeps on its own as the number of threads grows
+     * @return number of threads released
+     */
+    int sweepThreadScope();
+
+    /**
+     * Gets counters for the thread scoped instances this container holds
+     * @return
+     */
+    ThreadScopeStats getThreadScopeStats();
+
+    /**
+     * Gets the metrics of this container's bindings. Empty unless enabled
+     * with {@link ContainerBuilder#metrics()}
+     * @return
+     */
+    List<BindingMetrics> getBindingMetrics();
+
+    /**
+     * Gets the metrics of the binding for the given type and name
+     * @return metrics, or null if the binding isn't metered
+     */
+    BindingMetrics getBindingMetrics(Class<?> type, String name);
+
+    /**
+     * Gets a management bean exposing this container's binding metrics. The
+     * caller registers it with an MBean server under a name of its choice
+     * @return
+     */
+    ContainerMetricsMXBean getMetricsMXBean();
 }
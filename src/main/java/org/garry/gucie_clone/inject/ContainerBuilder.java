@@ -2,6 +2,8 @@ package org.garry.gucie_clone.inject;
 
 import java.lang.reflect.Member;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 /**
@@ -16,11 +18,53 @@ public final class ContainerBuilder {
     final Map<Key<?>, InternalFactory<?>> factories =
             new HashMap<>();
 
-    final List<InternalFactory<?>> singletonFactories =
-            new ArrayList<>();
+    final Map<Key<?>, InternalFactory<?>> singletonFactories =
+            new LinkedHashMap<>();
+
+    /**
+     * Implementation classes of bindings created by the container
+     */
+    final Map<Key<?>, Class<?>> implementations =
+            new HashMap<>();
 
     final List<Class<?>> staticInjections = new ArrayList<>();
 
+    Invocation invocation = Invocation.METHOD_HANDLES;
+
+    ContextPropagation contextPropagation = ContextPropagation.POOLED;
+
+    int threadScopeLimit = Integer.MAX_VALUE;
+
+    final Map<Key<?>, AsyncInternalFactory<?>> asyncFactories = new HashMap<>();
+
+    /**
+     * Keys of bindings created again for each injection point
+     */
+    final Set<Key<?>> unscoped = new HashSet<>();
+
+    /**
+     * Constructs instances for asynchronous lookups, null for the default
+     */
+    Executor asyncExecutor;
+
+    /**
+     * Number of request scoped bindings, which get slots in request arenas
+     */
+    int requestSlots;
+
+    boolean metrics;
+
+    /**
+     * Meters of the bindings, when metrics are enabled
+     */
+    final List<BindingMeter> meters = new ArrayList<>();
+
+    boolean bound;
+
+    boolean profileStartup;
+
+    StartupProfile startupProfile;
+
     boolean created;
 
     private static final InternalFactory<Container> CONTAINER_FACTORY =
@@ -35,7 +79,7 @@ public final class ContainerBuilder {
             new InternalFactory<Logger>() {
                 @Override
                 public Logger create(InternalContext context) {
-                    Member member = context.getExternalContext().getMember();
+                    Member member = context.getMember();
                     return member == null ? Logger.getAnonymousLogger()
                             : Logger.getLogger(member.getDeclaringClass().getName());
                 }
@@ -65,33 +109,192 @@ public final class ContainerBuilder {
      * @return
      */
     public Container create(boolean loadSingletons){
+        final ContainerImpl container = newContainer(ForkJoinPool.commonPool());
+        try {
+            if (loadSingletons){
+                container.callInContext(new ContainerImpl.ContextualCallable<Void>() {
+                    @Override
+                    public Void call(InternalContext context) {
+                       for (InternalFactory<?> factory : singletonFactories.values()){
+                           factory.create(context);
+                       }
+                       return null;
+                    }
+                });
+            }
+
+            container.injectStatics(staticInjections);
+        }finally {
+            finishProfiling(container);
+        }
+        return container;
+    }
+
+    /**
+     * Creates a {@link Container} instance and loads all singletons concurrently
+     * on the given executor, i.e. {@link java.util.concurrent.ForkJoinPool#commonPool()}.
+     * A singleton is loaded after the singletons it depends on through its
+     * constructor, fields and methods, directly or through other bindings
+     * created by the container. Singletons which depend on each other are loaded
+     * together on one thread. Then injects static members.
+     *
+     * <p>If loading fails, throws the failure of the first singleton in binding
+     * order, with the other failures added as suppressed exceptions. Singletons
+     * depending on a failed singleton aren't loaded.
+     *
+     * @param executor runs the singleton loading tasks
+     * @return
+     */
+    public Container create(Executor executor){
+        if (executor == null){
+            throw new NullPointerException("Executor is null.");
+        }
+        ContainerImpl container = newContainer(executor);
+        try {
+            new SingletonLoader(container, singletonFactories, executor).load();
+            container.injectStatics(staticInjections);
+        }finally {
+            finishProfiling(container);
+        }
+        return container;
+    }
+
+    /**
+     * @param executor default executor for asynchronous lookups
+     */
+    private ContainerImpl newContainer(Executor executor){
         ensureNotCreated();
         created = true;
 
-        final ContainerImpl container = new ContainerImpl(
-                new HashMap<Key<?>, InternalFactory<?>>(factories));
-        if (loadSingletons){
-            container.callInContext(new ContainerImpl.ContextualCallable<Void>() {
-                @Override
-                public Void call(InternalContext context) {
-                   for (InternalFactory<?> factory : singletonFactories){
-                       factory.create(context);
-                   }
-                   return null;
-                }
-            });
+        ContainerImpl container = new ContainerImpl(
+                new BindingTable(factories),
+                new HashMap<Key<?>, Class<?>>(implementations),
+                new HashMap<Key<?>, AsyncInternalFactory<?>>(asyncFactories),
+                new HashSet<Key<?>>(unscoped),
+                asyncExecutor == null ? executor : asyncExecutor, invocation,
+                contextPropagation, threadScopeLimit, requestSlots,
+                new ContainerMetrics(metrics, meters));
+        if (profileStartup){
+            container.profiler = new StartupProfiler();
         }
-
-        container.injectStatics(staticInjections);
         return container;
     }
 
+    private void finishProfiling(ContainerImpl container){
+        StartupProfiler profiler = container.profiler;
+        if (profiler != null){
+            container.profiler = null;
+            startupProfile = profiler.finish();
+        }
+    }
+
+    /**
+     * Sets how the container invokes injectable constructors. Defaults to
+     * {@link Invocation#METHOD_HANDLES}
+     * @param invocation
+     * @return this builder
+     */
+    public ContainerBuilder invocation(Invocation invocation){
+        ensureNotCreated();
+        if (invocation == null){
+            throw new NullPointerException("Invocation is null.");
+        }
+        this.invocation = invocation;
+        return this;
+    }
+
+    /**
+     * Sets how the container finds the context of the current call. Defaults
+     * to {@link ContextPropagation#POOLED}
+     * @param contextPropagation
+     * @return this builder
+     */
+    public ContainerBuilder contextPropagation(ContextPropagation contextPropagation){
+        ensureNotCreated();
+        if (contextPropagation == null){
+            throw new NullPointerException("Context propagation is null.");
+        }
+        this.contextPropagation = contextPropagation;
+        return this;
+    }
+
+    /**
+     * Sets the executor which constructs the instance of
+     * {@link Container#getInstanceAsync(Class, String)} once its async
+     * factories complete. Defaults to the executor given to
+     * {@link #create(Executor)}, or {@link ForkJoinPool#commonPool()}
+     * @param executor
+     * @return this builder
+     */
+    public ContainerBuilder asyncExecutor(Executor executor){
+        ensureNotCreated();
+        if (executor == null){
+            throw new NullPointerException("Executor is null.");
+        }
+        this.asyncExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Limits the number of {@link Scope#THREAD} and {@link Scope#PLATFORM_THREAD}
+     * instances the container keeps per thread. Beyond the limit, the least recently used instance is released
+     * and created again if needed. Unlimited by default
+     * @param maxInstancesPerThread
+     * @return this builder
+     */
+    public ContainerBuilder threadScopeLimit(int maxInstancesPerThread){
+        ensureNotCreated();
+        if (maxInstancesPerThread < 1){
+            throw new IllegalArgumentException("Thread scope limit must be positive.");
+        }
+        this.threadScopeLimit = maxInstancesPerThread;
+        return this;
+    }
+
+    /**
+     * Records metrics per binding: lookups, instances created and lookup
+     * latency. Read them from {@link Container#getBindingMetrics()} or through
+     * JMX with {@link Container#getMetricsMXBean()}. Constants aren't metered.
+     * Without metrics, lookups go straight to the bindings' factories
+     * @return this builder
+     * @throws IllegalStateException if bindings were already added
+     */
+    public ContainerBuilder metrics(){
+        ensureNotCreated();
+        if (bound){
+            throw new IllegalStateException("Enable metrics before adding bindings.");
+        }
+        this.metrics = true;
+        return this;
+    }
+
+    /**
+     * Records a timeline of the container's creation: singletons loaded,
+     * static members injected and classes scanned, on each thread taking part.
+     * Read it from {@link #getStartupProfile()} once created
+     * @return this builder
+     */
+    public ContainerBuilder profileStartup(){
+        ensureNotCreated();
+        this.profileStartup = true;
+        return this;
+    }
+
+    /**
+     * Gets the timeline of the container's creation, also when creation failed
+     * @return the profile, or null if the container hasn't been created or
+     *  {@link #profileStartup()} wasn't enabled
+     */
+    public StartupProfile getStartupProfile(){
+        return startupProfile;
+    }
+
     /**
      * Currently we only support creating one Container instance per builder.
      * If we want to support creating more than one container per builder.
      * we should move to a "factory factory" model where we create a factory
      * instance per Container. Right now, one factory instance would be shared
-     * across all the containers, singletons synchronize on the container when lazy loading etc
+     * across all the containers, singletons would share one instance etc
      */
     private void ensureNotCreated(){
         if (created){
@@ -174,8 +377,10 @@ public final class ContainerBuilder {
                 }.toString();
             }
         };
-        return factory(Key.newInstance(type, name), factory, scope);
-
+        Key<T> key = Key.newInstance(type, name);
+        factory(key, factory, scope);
+        implementations.put(key, implementation);
+        return this;
     }
 
     /**
@@ -190,20 +395,28 @@ public final class ContainerBuilder {
                                          InternalFactory<? extends T> factory, Scope scope){
         ensureNotCreated();
         checkKey(key);
-        final InternalFactory<? extends T> scopedFactory =
-                scope.scopeFactory(key.getType(), key.getName(), factory);
+        bound = true;
+        BindingMeter meter = null;
+        if (metrics && !(factory instanceof ConstantFactory)){
+            meter = new BindingMeter(key, scope);
+            meters.add(meter);
+            factory = meter.<T>meterCreations(factory);
+        }
+        InternalFactory<? extends T> scoped = scope == Scope.REQUEST
+                ? new RequestScopedFactory<T>(key.getType(), key.getName(), factory, requestSlots++)
+                : scope.scopeFactory(key.getType(), key.getName(), factory);
+        final InternalFactory<? extends T> scopedFactory = meter == null
+                ? scoped : meter.<T>meterLookups(scoped);
         factories.put(key, scopedFactory);
+        if (scope == Scope.DEFAULT) {
+            unscoped.add(key);
+        }
         if (scope == Scope.SINGLETON) {
-            singletonFactories.add(new InternalFactory<T>() {
+            singletonFactories.put(key, new InternalFactory<T>() {
                 @Override
                 public T create(InternalContext context) {
-                   try {
-                       context.setExternalContext(ExternalContext.newInstance(
-                               null, key, context.getContainerImpl()));
-                       return scopedFactory.create(context);
-                   }finally {
-                       context.setExternalContext(null);
-                   }
+                   context.setInjectionPoint(null, key);
+                   return scopedFactory.create(context);
                 }
             });
         }
@@ -231,26 +444,107 @@ public final class ContainerBuilder {
      */
     private <T> ContainerBuilder constant(final Class<T> type, final String name,
                                           final T value){
-        InternalFactory<T> factory = new InternalFactory<T>() {
-            @Override
-            public T create(InternalContext context) {
-                return value;
-            }
+        return constant(new ConstantFactory<T>(type, name, value));
+    }
 
-            @Override
-            public String toString() {
-               return new LinkedHashMap<String, Object>(){
-                   {
-                       put("type", type);
-                       put("name", name);
-                       put("value", value);
-                   }
-               }.toString();
-            }
-        };
+    private <T> ContainerBuilder constant(ConstantFactory<T> factory){
+        return factory(Key.newInstance(factory.type, factory.name), factory, Scope.DEFAULT);
+    }
+
+    /**
+     * Returns a constant value
+     */
+    static class ConstantFactory<T> implements InternalFactory<T> {
+
+        final Class<T> type;
+        final String name;
+        final T value;
+
+        ConstantFactory(Class<T> type, String name, T value) {
+            this.type = type;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public T create(InternalContext context) {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return new LinkedHashMap<String, Object>(){
+                {
+                    put("type", type);
+                    put("name", name);
+                    put("value", value);
+                }
+            }.toString();
+        }
+    }
+
+    static class IntConstantFactory extends ConstantFactory<Integer>
+            implements PrimitiveFactory.OfInt {
+
+        final int intValue;
+
+        IntConstantFactory(String name, int value) {
+            super(int.class, name, value);
+            this.intValue = value;
+        }
+
+        @Override
+        public int createInt(InternalContext context) {
+            return intValue;
+        }
+    }
+
+    static class LongConstantFactory extends ConstantFactory<Long>
+            implements PrimitiveFactory.OfLong {
+
+        final long longValue;
+
+        LongConstantFactory(String name, long value) {
+            super(long.class, name, value);
+            this.longValue = value;
+        }
+
+        @Override
+        public long createLong(InternalContext context) {
+            return longValue;
+        }
+    }
+
+    static class DoubleConstantFactory extends ConstantFactory<Double>
+            implements PrimitiveFactory.OfDouble {
+
+        final double doubleValue;
+
+        DoubleConstantFactory(String name, double value) {
+            super(double.class, name, value);
+            this.doubleValue = value;
+        }
 
-        return factory(Key.newInstance(type, name),factory, Scope.DEFAULT);
+        @Override
+        public double createDouble(InternalContext context) {
+            return doubleValue;
+        }
+    }
+
+    static class BooleanConstantFactory extends ConstantFactory<Boolean>
+            implements PrimitiveFactory.OfBoolean {
+
+        final boolean booleanValue;
+
+        BooleanConstantFactory(String name, boolean value) {
+            super(boolean.class, name, value);
+            this.booleanValue = value;
+        }
 
+        @Override
+        public boolean createBoolean(InternalContext context) {
+            return booleanValue;
+        }
     }
 
     /**
@@ -267,28 +561,28 @@ public final class ContainerBuilder {
      * Maps a constant value to the given name.
      */
     public ContainerBuilder constant(String name, int value) {
-        return constant(int.class, name, value);
+        return constant(new IntConstantFactory(name, value));
     }
 
     /**
      * Maps a constant value to the given name.
      */
     public ContainerBuilder constant(String name, long value) {
-        return constant(long.class, name, value);
+        return constant(new LongConstantFactory(name, value));
     }
 
     /**
      * Maps a constant value to the given name.
      */
     public ContainerBuilder constant(String name, boolean value) {
-        return constant(boolean.class, name, value);
+        return constant(new BooleanConstantFactory(name, value));
     }
 
     /**
      * Maps a constant value to the given name.
      */
     public ContainerBuilder constant(String name, double value) {
-        return constant(double.class, name, value);
+        return constant(new DoubleConstantFactory(name, value));
     }
 
     /**
@@ -377,4 +671,33 @@ public final class ContainerBuilder {
 
         return factory(Key.newInstance(type,name), internalFactory, scope);
     }
+
+    /**
+     * Convenience method. Equivalent to
+     * {@code asyncFactory(type, Container.DEFAULT_NAME, factory, Scope.DEFAULT)}
+     */
+    public <T> ContainerBuilder asyncFactory(Class<T> type,
+                                             AsyncFactory<? extends T> factory) {
+        return asyncFactory(type, Container.DEFAULT_NAME, factory, Scope.DEFAULT);
+    }
+
+    /**
+     * Maps an async factory to a given dependency type and name. A singleton
+     * async factory is started once, and concurrent lookups share its result
+     * @param type of dependency
+     * @param name of dependency
+     * @param factory starts creating objects to inject
+     * @param scope scope of injected instances
+     * @param <T>
+     * @return this builder
+     */
+    public <T> ContainerBuilder asyncFactory(Class<T> type, String name,
+                                             AsyncFactory<? extends T> factory, Scope scope) {
+        Key<T> key = Key.newInstance(type, name);
+        AsyncInternalFactory<T> internalFactory = new AsyncInternalFactory<T>(
+                type, name, factory, scope == Scope.SINGLETON);
+        factory(key, internalFactory, scope);
+        asyncFactories.put(key, internalFactory);
+        return this;
+    }
 }
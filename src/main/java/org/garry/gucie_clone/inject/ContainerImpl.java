@@ -2,18 +2,85 @@ package org.garry.gucie_clone.inject;
 
 
 import org.garry.gucie_clone.inject.util.ReferenceCache;
+import org.garry.gucie_clone.inject.util.ReferenceType;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class ContainerImpl implements Container {
 
     // 工厂方法 创建类都可以替代为创建一个接口和工厂 from OnJava8
-    final Map<Key<?>, InternalFactory<?>> factories;
+    final BindingTable bindings;
 
-    ContainerImpl(Map<Key<?>, InternalFactory<?>> factories){
-        this.factories = factories;
+    /**
+     * Implementation classes of bindings created by this container. Used to
+     * find dependencies between bindings
+     */
+    final Map<Key<?>, Class<?>> implementations;
+
+    final Invocation invocation;
+
+    final ContextPropagation contextPropagation;
+
+    final ThreadScope threadScope;
+
+    final int requestSlots;
+
+    /**
+     * Async factories by key, started ahead of asynchronous lookups
+     */
+    final Map<Key<?>, AsyncInternalFactory<?>> asyncFactories;
+
+    /**
+     * Keys of bindings created again for each injection point
+     */
+    final Set<Key<?>> unscoped;
+
+    /**
+     * Constructs instances once the async factories of an asynchronous lookup
+     * complete
+     */
+    final Executor asyncExecutor;
+
+    final ContainerMetrics metrics;
+
+    /**
+     * Records the creation of the container, null once created or unless
+     * enabled with {@link ContainerBuilder#profileStartup()}
+     */
+    volatile StartupProfiler profiler;
+
+    ContainerImpl(BindingTable bindings,
+                  Map<Key<?>, Class<?>> implementations,
+                  Map<Key<?>, AsyncInternalFactory<?>> asyncFactories,
+                  Set<Key<?>> unscoped, Executor asyncExecutor,
+                  Invocation invocation,
+                  ContextPropagation contextPropagation, int threadScopeLimit,
+                  int requestSlots, ContainerMetrics metrics){
+        this.bindings = bindings;
+        this.implementations = implementations;
+        this.asyncFactories = asyncFactories;
+        this.unscoped = unscoped;
+        this.asyncExecutor = asyncExecutor;
+        this.invocation = invocation;
+        this.contextPropagation = contextPropagation;
+        this.contextPool = contextPropagation == ContextPropagation.SCOPED
+                ? new ContextPool(Runtime.getRuntime().availableProcessors() * 2) : null;
+        this.threadScope = new ThreadScope(threadScopeLimit);
+        this.requestSlots = requestSlots;
+        this.metrics = metrics;
     }
 
 
@@ -22,6 +89,51 @@ class ContainerImpl implements Container {
      */
     interface Injector {
         void inject(InternalContext context, Object o);
+
+        /**
+         * Adds the keys this injector depends on
+         */
+        void addDependencies(Collection<Key<?>> dependencies);
+    }
+
+    /**
+     * Gets the keys the given implementation depends on through its constructor,
+     * fields and methods
+     */
+    Set<Key<?>> getDependencies(Class<?> implementation){
+        Set<Key<?>> dependencies = new LinkedHashSet<>();
+        addDependencies(implementation, dependencies);
+        return dependencies;
+    }
+
+    /**
+     * Gets the key of each injection point of the given implementation, a key
+     * injected twice appearing twice
+     */
+    List<Key<?>> getInjectionPoints(Class<?> implementation){
+        List<Key<?>> injectionPoints = new ArrayList<>();
+        addDependencies(implementation, injectionPoints);
+        return injectionPoints;
+    }
+
+    void addDependencies(Class<?> implementation, Collection<Key<?>> dependencies){
+        ConstructorInjector<?> constructor = getConstructor(implementation);
+        addDependencies(constructor.parameterInjectors, dependencies);
+        for (Injector injector : constructor.injectors){
+            injector.addDependencies(dependencies);
+        }
+    }
+
+    static void addDependencies(ParameterInjector<?>[] parameterInjectors,
+                                Collection<Key<?>> dependencies){
+        if (parameterInjectors != null){
+            for (ParameterInjector<?> parameterInjector : parameterInjectors){
+                // providers don't need their dependency to construct
+                if (parameterInjector.deferred == null){
+                    dependencies.add(parameterInjector.key);
+                }
+            }
+        }
     }
 
     static class MissingDependencyException extends Exception {
@@ -54,71 +166,88 @@ class ContainerImpl implements Container {
         return Modifier.isStatic(member.getModifiers());
     }
 
+    /**
+     * Injects a parameter. Refers to its binding by id rather than holding the
+     * factory, so injectors cached on a class don't keep bindings alive
+     */
     static class ParameterInjector<T> {
 
-        final ExternalContext<T> externalContext;
-        final InternalFactory<? extends T> factory;
+        final Member member;
+        final Key<T> key;
+        final int binding;
 
-        public ParameterInjector(ExternalContext<T> externalContext,
-                                 InternalFactory<? extends T> factory) {
-            this.externalContext = externalContext;
-            this.factory = factory;
+        /**
+         * Creates the provider or lazy injected in place of the dependency, or null
+         */
+        final DeferredFactory<T> deferred;
+
+        public ParameterInjector(Member member, Key<T> key, int binding,
+                                 DeferredFactory<T> deferred) {
+            this.member = member;
+            this.key = key;
+            this.binding = binding;
+            this.deferred = deferred;
         }
 
         // ???
-        T inject(Member member, InternalContext context){
-            ExternalContext<?> previous = context.getExternalContext();
-            context.setExternalContext(externalContext);
-            try {
-                return factory.create(context);
-            }finally {
-                context.setExternalContext(previous);
-            }
+        Object inject(Member member, InternalContext context){
+            InternalFactory<?> factory = deferred != null ? deferred
+                    : context.getContainerImpl().bindings.getFactory(binding);
+            context.setInjectionPoint(this.member, key);
+            return factory.create(context);
         }
     }
 
     static class FieldInjector implements Injector {
 
         final Field field;
-        final InternalFactory<?> factory;
-        final ExternalContext<?> externalContext;
+        final Key<?> key;
+        final DeferredFactory<?> deferred;
+        final FieldSetter setter;
 
         public FieldInjector(ContainerImpl container, Field field, String name)
                 throws MissingDependencyException {
             this.field = field;
             field.setAccessible(true);
 
-            Key<?> key = Key.newInstance(field.getType(), name);
-            factory = container.getFactory(key);
-            if (factory == null){
-                throw new MissingDependencyException(
-                        "No mapping found for dependency " + key + "in " + field + ".");
-            }
-            this.externalContext = ExternalContext.newInstance(field, key, container);
+            Class<?> type = field.getType();
+            boolean isDeferred = DeferredFactory.isDeferred(type);
+            Class<?> keyType = isDeferred
+                    ? DeferredFactory.getProvidedType(field.getGenericType(), field)
+                    : type;
+            this.key = Key.newInstance(keyType, name);
+            int binding = container.getBinding(key, field);
+            this.deferred = isDeferred
+                    ? new DeferredFactory<>(key, binding, type == Lazy.class)
+                    : null;
+            this.setter = FieldSetter.forField(container.invocation, field,
+                    container.bindings.getFactory(binding), binding, deferred);
         }
 
         @Override
         public void inject(InternalContext context, Object o) {
-            ExternalContext<Object> previous = context.getExternalContext();
-            context.setExternalContext(externalContext);
-            try {
-                field.set(o, factory.create(context));
-            }catch (IllegalAccessException e){
-                throw new AssertionError(e);
-            }finally {
-                context.setExternalContext(previous);
+            context.setInjectionPoint(field, key);
+            setter.set(context, o);
+        }
+
+        @Override
+        public void addDependencies(Collection<Key<?>> dependencies) {
+            if (deferred == null){
+                dependencies.add(key);
             }
         }
     }
 
+    @SuppressWarnings("unchecked")
     <T> InternalFactory<? extends T> getFactory(Key<T> key) {
-        return (InternalFactory<T>) factories.get(key);
+        return (InternalFactory<T>) bindings.getFactory(key);
     }
 
     static class MethodInject implements Injector {
 
         final Method method;
         final ParameterInjector<?>[] parameterInjectors;
+        final Invoker invoker;
 
         public MethodInject(ContainerImpl container, Method method, String name) throws MissingDependencyException {
             this.method = method;
@@ -131,19 +260,35 @@ class ContainerImpl implements Container {
             }
             parameterInjectors = container.getParametersInjectors(
                     method, method.getParameterAnnotations(), parameterTypes, name);
+            invoker = Invoker.forMethod(container.invocation, method, parameterInjectors);
         }
 
         @Override
         public void inject(InternalContext context, Object o) {
             try {
-                method.invoke(o, getParameters(method, context, parameterInjectors));
-            }catch (Exception e){
-                throw new RuntimeException(e);
+                invoker.invoke(context, o);
+            }catch (InvocationTargetException e){
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException){
+                    throw (RuntimeException) cause;
+                }else if (cause instanceof Error){
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            }catch (InstantiationException e){
+                throw new AssertionError(e);
+            }catch (IllegalAccessException e){
+                throw new AssertionError(e);
             }
         }
+
+        @Override
+        public void addDependencies(Collection<Key<?>> dependencies) {
+            ContainerImpl.addDependencies(parameterInjectors, dependencies);
+        }
     }
 
-    private static Object[] getParameters(Member member, InternalContext context,
+    static Object[] getParameters(Member member, InternalContext context,
                                           ParameterInjector[] parameterInjectors){
         if (parameterInjectors == null){
             return null;
@@ -164,18 +309,47 @@ class ContainerImpl implements Container {
         List<ParameterInjector<?>> parameterInjectors =
                 new ArrayList<>();
 
+        Type[] genericTypes = member instanceof Method
+                ? ((Method) member).getGenericParameterTypes()
+                : ((Constructor<?>) member).getGenericParameterTypes();
         Iterator<Annotation[]> annotationsInjector =
                 Arrays.asList(annotations).iterator();
-        for (Class<?> parameterType : parameterTypes){
+        for (int i = 0; i < parameterTypes.length; i++){
+            Class<?> parameterType = parameterTypes[i];
             Inject annotation = findInject(annotationsInjector.next());
             String name = annotation == null ?
                     defaultName : annotation.value();
-            Key<?> key = Key.newInstance(parameterType, name);
-            parameterInjectors.add(creatrParameterInjector(key, member));
+            if (DeferredFactory.isDeferred(parameterType)){
+                // generic types leave out synthetic parameters of inner classes
+                Type genericType = genericTypes[genericTypes.length - parameterTypes.length + i];
+                Key<?> key = Key.newInstance(
+                        DeferredFactory.getProvidedType(genericType, member), name);
+                parameterInjectors.add(creatrDeferredInjector(
+                        key, member, parameterType == Lazy.class));
+            }else {
+                Key<?> key = Key.newInstance(parameterType, name);
+                parameterInjectors.add(creatrParameterInjector(key, member));
+            }
         }
         return toArray(parameterInjectors);
     }
 
+    /**
+     * Gets parameter injectors for dependencies declared by a generated injector
+     */
+    ParameterInjector<?>[] getParametersInjectors(
+            Class<?> type, GeneratedInjector.Dependency[] dependencies)
+        throws MissingDependencyException {
+        ParameterInjector<?>[] parameterInjectors =
+                new ParameterInjector<?>[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++){
+            Key<?> key = dependencies[i].toKey();
+            parameterInjectors[i] = new ParameterInjector<>(
+                    null, key, getBinding(key, type.getName()), null);
+        }
+        return parameterInjectors;
+    }
+
     private ParameterInjector<?>[] toArray(
             List<ParameterInjector<?>> parameterInjections){
         return parameterInjections.toArray(
@@ -184,14 +358,31 @@ class ContainerImpl implements Container {
 
     <T> ParameterInjector<T> creatrParameterInjector(
             Key<T> key, Member member) throws MissingDependencyException {
-        InternalFactory<? extends T> factory = getFactory(key);
-        if (factory == null){
+        return new ParameterInjector<T>(member, key, getBinding(key, member), null);
+    }
+
+    /**
+     * Creates an injector for a {@link Provider} or {@link Lazy} parameter
+     * @param key of the provided dependency
+     */
+    <T> ParameterInjector<T> creatrDeferredInjector(
+            Key<T> key, Member member, boolean lazy) throws MissingDependencyException {
+        int binding = getBinding(key, member);
+        return new ParameterInjector<T>(member, key, binding,
+                new DeferredFactory<T>(key, binding, lazy));
+    }
+
+    /**
+     * Gets the id of the binding for the given key
+     * @param where the dependency is declared, for the error message
+     */
+    int getBinding(Key<?> key, Object where) throws MissingDependencyException {
+        int binding = bindings.indexOf(key);
+        if (binding < 0){
             throw new MissingDependencyException(
-                    "No mapping found for dependency " + key + " in " + member + ".");
+                    "No mapping found for dependency " + key + " in " + where + ".");
         }
-
-        ExternalContext<T> externalContext = ExternalContext.newInstance(member, key, this);
-        return new ParameterInjector<T>(externalContext,factory);
+        return binding;
     }
 
     /**
@@ -208,31 +399,54 @@ class ContainerImpl implements Container {
         return null;
     }
 
+    /**
+     * Ids of constructor injectors, which index construction contexts
+     */
+    final AtomicInteger constructorIds = new AtomicInteger();
+
     static class ConstructorInjector<T> {
 
+        final int id;
         final Class<T> implementation;
         final List<Injector> injectors;
         final Constructor<T> constructor;
         final ParameterInjector<?>[] parameterInjectors;
+        final Invoker invoker;
 
         ConstructorInjector(ContainerImpl container, Class<T> implementation){
+            this.id = container.constructorIds.getAndIncrement();
             this.implementation = implementation;
 
-            constructor = findConstructorIn(implementation);
-            constructor.setAccessible(true);
+            GeneratedInjector<T> generated = container.getGeneratedInjector(implementation);
+            if (generated != null){
+                // skip scanning, the generated injector knows the constructor
+                constructor = null;
+                try {
+                    parameterInjectors = container.getParametersInjectors(
+                            implementation, generated.constructorParameters());
+                }catch (MissingDependencyException e){
+                    throw new DependencyException(e);
+                }
+                invoker = Invoker.forGenerated(generated, parameterInjectors);
+            }else {
+                constructor = findConstructorIn(implementation);
+                constructor.setAccessible(true);
 
-            try {
-                Inject inject = constructor.getAnnotation(Inject.class);
-                parameterInjectors = inject == null
-                        ? null // default constructor
-                        : container.getParametersInjectors(
-                            constructor,
-                            constructor.getParameterAnnotations(),
-                            constructor.getParameterTypes(),
-                            inject.value()
-                          );
-            }catch (MissingDependencyException e){
-                throw new DependencyException(e);
+                try {
+                    Inject inject = constructor.getAnnotation(Inject.class);
+                    parameterInjectors = inject == null
+                            ? null // default constructor
+                            : container.getParametersInjectors(
+                                constructor,
+                                constructor.getParameterAnnotations(),
+                                constructor.getParameterTypes(),
+                                inject.value()
+                              );
+                }catch (MissingDependencyException e){
+                    throw new DependencyException(e);
+                }
+                invoker = Invoker.forConstructor(
+                        container.invocation, constructor, parameterInjectors);
             }
             injectors = container.injectors.get(implementation);
         }
@@ -268,15 +482,20 @@ class ContainerImpl implements Container {
          * @param expectedType
          * @return
          */
+        @SuppressWarnings("unchecked")
         Object construct(InternalContext context, Class<? super T> expectedType) {
             ConstructionContext<T> constructionContext =
-                    context.getConstructionContext(this);
+                    context.getConstructionContext(id);
 
             // we have a circular reference between constructors. Return a proxy.
             // 构造一个的时候另一个也在构造，互相引用啦
             if (constructionContext.isConstructing()){
                 // if we can't proxy this object, can we proxy the other object?
-                return constructionContext.createProxy(expectedType);
+                ConstructEvent event = new ConstructEvent();
+                event.begin();
+                Object proxy = constructionContext.createProxy(expectedType);
+                event.commit(implementation, true);
+                return proxy;
             }
 
             // If we're re-entering this factory while injecting fields or methods,
@@ -286,15 +505,30 @@ class ContainerImpl implements Container {
                 return t;
             }
 
+            StartupProfiler profiler = context.getContainerImpl().profiler;
+            StartupProfile.Span span = null;
+            ConstructEvent event = new ConstructEvent();
+            event.begin();
             try {
+                if (profiler != null){
+                    Key<?> key = context.key;
+                    span = profiler.enter(StartupProfile.Span.CONSTRUCT, implementation.getName(),
+                            key != null && key.type.isAssignableFrom(implementation) ? key : null,
+                            context.member);
+                }
+
                 // First time through...
                 constructionContext.startConstructing();
+                StartupProfile.Span phase = profiler == null ? null
+                        : profiler.enter(StartupProfile.Span.CONSTRUCTOR, null);
                 try {
-                    Object[] parameters = getParameters(constructor, context, parameterInjectors);
-                    t = constructor.newInstance(parameters);
+                    t = (T) invoker.invoke(context, null);
                     constructionContext.setProxyDelegates(t);
                 }finally {
                     constructionContext.finishConstruction();
+                    if (phase != null){
+                        profiler.exit(phase);
+                    }
                 }
 
                 // store reference. If an injector re-enters this factory, they'll
@@ -302,8 +536,16 @@ class ContainerImpl implements Container {
                 constructionContext.setCurrentReference(t);
 
                 // Inject fields and methods.
-                for (Injector injector : injectors){
-                    injector.inject(context, t);
+                phase = profiler == null || injectors.isEmpty() ? null
+                        : profiler.enter(StartupProfile.Span.INJECTORS, null);
+                try {
+                    for (Injector injector : injectors){
+                        injector.inject(context, t);
+                    }
+                }finally {
+                    if (phase != null){
+                        profiler.exit(phase);
+                    }
                 }
 
                 return t;
@@ -315,20 +557,182 @@ class ContainerImpl implements Container {
                 throw new RuntimeException(e);
             }finally {
                 constructionContext.removeCurrentReference();
+                if (span != null){
+                    profiler.exit(span);
+                }
+                event.commit(implementation, false);
             }
         }
     }
 
-    final Map<Class<?>, List<Injector>> injectors =
-            new ReferenceCache<Class<?>, List<Injector>>(){
+    /*
+     * Per class caches live on the classes themselves, so a hit is a field load
+     * and an entry goes away with its class loader. Cached values must not
+     * reference the container strongly, or a class would keep every container
+     * which has injected it alive. Injection points refer to bindings by id and
+     * record only their member and key for this reason.
+     */
+
+    final ClassValue<List<Injector>> injectors =
+            new ClassValue<List<Injector>>(){
+                @Override
+                protected List<Injector> computeValue(Class<?> key) {
+                    StartupProfiler profiler = ContainerImpl.this.profiler;
+                    StartupProfile.Span span = profiler == null ? null
+                            : profiler.enter(StartupProfile.Span.SCAN, "addInjectors " + key.getName());
+                    try {
+                        List<Injector> injectors = new ArrayList<>();
+                        GeneratedInjector<?> generated = getGeneratedInjector(key);
+                        if (generated != null){
+                            addInjectors(key, generated, injectors);
+                        }else {
+                            addInjectors(key, injectors);
+                        }
+                        return injectors;
+                    }finally {
+                        if (span != null){
+                            profiler.exit(span);
+                        }
+                    }
+                }
+            };
+
+    /**
+     * Marks classes without a generated injector in {@link #generatedInjectors}
+     */
+    static final Object NO_GENERATED_INJECTOR = new Object();
+
+    final ClassValue<Object> generatedInjectors =
+            new ClassValue<Object>(){
+                @Override
+                protected Object computeValue(Class<?> type) {
+                    return loadGeneratedInjector(type);
+                }
+            };
+
+    /**
+     * Names of the classes with generated injectors by class loader, read once
+     * per class loader from the indexes the annotation processor writes
+     */
+    static final ReferenceCache<ClassLoader, Set<String>> generatedInjectorIndexes =
+            new ReferenceCache<ClassLoader, Set<String>>(ReferenceType.WEAK, ReferenceType.STRONG){
                 @Override
-                protected List<Injector> create(Class<?> key) {
-                    List<Injector> injectors = new ArrayList<>();
-                    addInjectors(key, injectors);
-                    return injectors;
+                protected Set<String> create(ClassLoader classLoader) {
+                    return readGeneratedInjectorIndex(classLoader);
                 }
             };
 
+    /**
+     * Gets the injector generated at compile time for the given class, or null if
+     * the class must be scanned reflectively
+     */
+    @SuppressWarnings("unchecked")
+    <T> GeneratedInjector<T> getGeneratedInjector(Class<T> type){
+        Object generated = generatedInjectors.get(type);
+        return generated == NO_GENERATED_INJECTOR ? null : (GeneratedInjector<T>) generated;
+    }
+
+    static Object loadGeneratedInjector(Class<?> type){
+        ClassLoader classLoader = type.getClassLoader();
+        // only look for injectors the processor has indexed, a miss would
+        // cost a failed class lookup per injected class
+        if (classLoader == null
+                || !generatedInjectorIndexes.get(classLoader).contains(type.getName())){
+            return NO_GENERATED_INJECTOR;
+        }
+        try {
+            Class<?> generated = Class.forName(
+                    type.getName() + GeneratedInjector.SUFFIX, true, classLoader);
+            return generated.getDeclaredConstructor().newInstance();
+        }catch (ClassNotFoundException e){
+            // stale index
+            return NO_GENERATED_INJECTOR;
+        }catch (ReflectiveOperationException e){
+            throw new DependencyException("Could not load generated injector for "
+                    + type.getName() + ".", e);
+        }
+    }
+
+    static Set<String> readGeneratedInjectorIndex(ClassLoader classLoader){
+        Set<String> types = new HashSet<>();
+        try {
+            Enumeration<URL> indexes = classLoader.getResources(GeneratedInjector.INDEX);
+            while (indexes.hasMoreElements()){
+                URLConnection connection = indexes.nextElement().openConnection();
+                connection.setUseCaches(false);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        connection.getInputStream(), StandardCharsets.UTF_8));
+                try {
+                    for (String line; (line = reader.readLine()) != null; ){
+                        line = line.trim();
+                        if (!line.isEmpty()){
+                            types.add(line);
+                        }
+                    }
+                }finally {
+                    reader.close();
+                }
+            }
+        }catch (IOException e){
+            throw new DependencyException("Could not read " + GeneratedInjector.INDEX + ".", e);
+        }
+        return types;
+    }
+
+    /**
+     * Adds injectors for the fields and methods declared by a generated injector
+     */
+    void addInjectors(Class<?> type, GeneratedInjector<?> generated, List<Injector> injectors){
+        GeneratedInjector.InjectionPoint[] members = generated.members();
+        for (int i = 0; i < members.length; i++){
+            try {
+                injectors.add(new GeneratedMemberInjector(generated, i,
+                        getParametersInjectors(type, members[i].getParameters())));
+            }catch (MissingDependencyException e){
+                if (members[i].isRequired()){
+                    throw new DependencyException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Injects a field or method through a generated injector
+     */
+    static class GeneratedMemberInjector implements Injector {
+
+        final GeneratedInjector<Object> generated;
+        final int member;
+        final ParameterInjector<?>[] parameterInjectors;
+
+        @SuppressWarnings("unchecked")
+        GeneratedMemberInjector(GeneratedInjector<?> generated, int member,
+                                ParameterInjector<?>[] parameterInjectors) {
+            this.generated = (GeneratedInjector<Object>) generated;
+            this.member = member;
+            this.parameterInjectors = parameterInjectors;
+        }
+
+        @Override
+        public void inject(InternalContext context, Object o) {
+            Object[] arguments = getParameters(null, context, parameterInjectors);
+            try {
+                generated.inject(member, o, arguments);
+            }catch (RuntimeException e){
+                throw e;
+            }catch (Error e){
+                throw e;
+            }catch (Throwable t){
+                throw new RuntimeException(t);
+            }
+        }
+
+        @Override
+        public void addDependencies(Collection<Key<?>> dependencies) {
+            ContainerImpl.addDependencies(parameterInjectors, dependencies);
+        }
+    }
+
     /**
      * Recursively adds injectors for fields and methods from the given class
      * to given list. Injects parent classed before sub classes
@@ -347,20 +751,42 @@ class ContainerImpl implements Container {
         addInjectorsForMethods(clazz.getDeclaredMethods(), false, injectors);
     }
 
-    void injectStatics(List<Class<?>> staticInjections){
-        final List<Injector> injectors = new ArrayList<>();
+    void injectStatics(final List<Class<?>> staticInjections){
+        final StartupProfiler profiler = this.profiler;
+        final List<List<Injector>> injectors = new ArrayList<>();
 
         for (Class<?> clazz : staticInjections){
-            addInjectorsForFields(clazz.getDeclaredFields(), true, injectors);
-            addInjectorsForMethods(clazz.getDeclaredMethods(), true, injectors);
+            StartupProfile.Span span = profiler == null ? null
+                    : profiler.enter(StartupProfile.Span.SCAN, "addInjectors " + clazz.getName());
+            try {
+                List<Injector> classInjectors = new ArrayList<>();
+                addInjectorsForFields(clazz.getDeclaredFields(), true, classInjectors);
+                addInjectorsForMethods(clazz.getDeclaredMethods(), true, classInjectors);
+                injectors.add(classInjectors);
+            }finally {
+                if (span != null){
+                    profiler.exit(span);
+                }
+            }
         }
 
         //todo 面向接口编程，运行时找到实现类，但这里大部分的做法都是new xx(){...}
         callInContext(new ContextualCallable<Void>(){
             @Override
             public Void call(InternalContext context) {
-                for (Injector injector : injectors){
-                    injector.inject(context, null);
+                for (int i = 0; i < injectors.size(); i++){
+                    StartupProfile.Span span = profiler == null ? null
+                            : profiler.enter(StartupProfile.Span.STATICS,
+                                    staticInjections.get(i).getName());
+                    try {
+                        for (Injector injector : injectors.get(i)){
+                            injector.inject(context, null);
+                        }
+                    }finally {
+                        if (span != null){
+                            profiler.exit(span);
+                        }
+                    }
                 }
                 return null;
             }
@@ -381,33 +807,84 @@ class ContainerImpl implements Container {
     }
 
     // 在threadlocal新建上下文
-    ThreadLocal<InternalContext[]> localContext =
-            new ThreadLocal<InternalContext[]>(){
-                @Override
-                protected InternalContext[] initialValue() {
-                   return new InternalContext[1];
-                }
-            };
+    final ThreadLocal<InternalContext> localContext = new ThreadLocal<>();
+
+    /**
+     * Contexts released by outermost calls, with {@link ContextPropagation#SCOPED}
+     */
+    final ContextPool contextPool;
 
     /**
-     * Looks up thread local context. Creates (and removes) a new context if necessary
+     * Looks up thread local context. Enters (and resets) the context if necessary.
+     * With {@link ContextPropagation#SCOPED}, takes the context from the pool and
+     * removes it from the thread once the call which entered it returns
      * @param callable
      * @param <T>
      * @return
      */
     <T> T callInContext(ContextualCallable<T> callable){
-        InternalContext[] reference = localContext.get();
-        if (reference[0] == null){
-            reference[0] = new InternalContext(this);
-            try{
-                return callable.call(reference[0]);
-            }finally {
-                // Only remove the context if this call created it
-                reference[0] = null;
+        InternalContext context = localContext.get();
+        if (context == null){
+            context = contextPool == null ? new InternalContext() : contextPool.acquire();
+            localContext.set(context);
+        }else if (context.isActive()){
+            // Someone else will reset this context
+            return callable.call(context);
+        }
+
+        context.enter(this);
+        CallInContextEvent event = new CallInContextEvent();
+        event.begin();
+        try{
+            return callable.call(context);
+        }finally {
+            // Only reset the context if this call entered it
+            context.exit();
+            if (contextPool != null){
+                localContext.remove();
+                contextPool.release(context);
             }
-        }else {
-            // Someone else will clean up this context
-            return callable.call(reference[0]);
+            event.commit(this);
+        }
+    }
+
+    @Override
+    public <T> T callInScope(final Scope.Strategy scopeStrategy,
+                             final Callable<T> callable) throws Exception {
+        if (scopeStrategy == null){
+            throw new NullPointerException("Scope strategy is null.");
+        }
+        try {
+            return callInContext(new ContextualCallable<T>() {
+                @Override
+                public T call(InternalContext context) {
+                    Scope.Strategy previous = context.scopeStrategy;
+                    context.scopeStrategy = scopeStrategy;
+                    try {
+                        return callable.call();
+                    }catch (RuntimeException e){
+                        throw e;
+                    }catch (Exception e){
+                        throw new CheckedException(e);
+                    }finally {
+                        context.scopeStrategy = previous;
+                    }
+                }
+            });
+        }catch (CheckedException e){
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * Carries a checked exception out of a {@link ContextualCallable}
+     */
+    static class CheckedException extends RuntimeException {
+
+        private static final long serialVersionUID = 0;
+
+        CheckedException(Exception cause) {
+            super(cause);
         }
     }
 
@@ -467,15 +944,26 @@ class ContainerImpl implements Container {
      * @param <T>
      * @return
      */
+    @SuppressWarnings("unchecked")
     <T> ConstructorInjector<T> getConstructor(Class<T> implementation) {
-        return constructors.get(implementation);
+        return (ConstructorInjector<T>) constructors.get(implementation);
     }
 
-    Map<Class<?>, ConstructorInjector> constructors =
-            new ReferenceCache<Class<?>, ConstructorInjector>() {
+    final ClassValue<ConstructorInjector<?>> constructors =
+            new ClassValue<ConstructorInjector<?>>() {
                 @Override
-                protected ConstructorInjector create(Class<?> implementation) {
-                   return new ConstructorInjector(ContainerImpl.this, implementation);
+                protected ConstructorInjector<?> computeValue(Class<?> implementation) {
+                    StartupProfiler profiler = ContainerImpl.this.profiler;
+                    StartupProfile.Span span = profiler == null ? null
+                            : profiler.enter(StartupProfile.Span.SCAN,
+                                    "findConstructorIn " + implementation.getName());
+                    try {
+                        return new ConstructorInjector<>(ContainerImpl.this, implementation);
+                    }finally {
+                        if (span != null){
+                            profiler.exit(span);
+                        }
+                    }
                 }
             };
 
@@ -501,16 +989,18 @@ class ContainerImpl implements Container {
         });
     }
 
+    @SuppressWarnings("unchecked")
     <T> T getInstance(Class<T> type, String name, InternalContext context){
-        ExternalContext<?> previous = context.getExternalContext();
-        Key<T> key = Key.newInstance(type, name);
-        context.setExternalContext(ExternalContext.newInstance(null, key,this));
-        try {
-            return getFactory(key).create(context);
-        }finally {
-            // 啥意思
-            context.setExternalContext(previous);
+        int id = bindings.indexOf(type, name);
+        if (id < 0){
+            throw new DependencyException("No mapping found for dependency "
+                    + Key.newInstance(type, name) + ".");
         }
+        Key<T> key = (Key<T>) bindings.getKey(id);
+        InternalFactory<? extends T> factory = (InternalFactory<? extends T>) bindings.getFactory(id);
+
+        context.setInjectionPoint(null, key);
+        return factory.create(context);
     }
 
 
@@ -529,6 +1019,223 @@ class ContainerImpl implements Container {
         return getInstance(type, DEFAULT_NAME, context);
     }
 
+    @Override
+    public <T> CompletableFuture<T> getInstanceAsync(final Class<T> type, final String name) {
+        final int id = bindings.indexOf(type, name);
+        if (id < 0){
+            throw new DependencyException("No mapping found for dependency "
+                    + Key.newInstance(type, name) + ".");
+        }
+
+        final Map<AsyncInternalFactory<?>, Deque<CompletableFuture<?>>> prefetched =
+                callInContext(new ContextualCallable<Map<AsyncInternalFactory<?>, Deque<CompletableFuture<?>>>>() {
+                    @Override
+                    public Map<AsyncInternalFactory<?>, Deque<CompletableFuture<?>>> call(InternalContext context) {
+                        return startAsyncDependencies(bindings.getKey(id), context);
+                    }
+                });
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (Deque<CompletableFuture<?>> started : prefetched.values()){
+            futures.addAll(started);
+        }
+        if (futures.isEmpty()){
+            try {
+                return CompletableFuture.completedFuture(getInstance(type, name));
+            }catch (RuntimeException e){
+                CompletableFuture<T> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+
+        return CompletableFuture
+                .allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApplyAsync(new Function<Void, T>() {
+                    @Override
+                    public T apply(Void ignored) {
+                        return callInContext(new ContextualCallable<T>() {
+                            @Override
+                            public T call(InternalContext context) {
+                                Map<AsyncInternalFactory<?>, Deque<CompletableFuture<?>>> previous =
+                                        context.prefetched;
+                                context.prefetched = prefetched;
+                                try {
+                                    return getInstance(type, name, context);
+                                }finally {
+                                    context.prefetched = previous;
+                                }
+                            }
+                        });
+                    }
+                }, asyncExecutor);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> getInstanceAsync(Class<T> type) {
+        return getInstanceAsync(type, DEFAULT_NAME);
+    }
+
+    /**
+     * Starts the async factories the given binding depends on, following
+     * dependencies through bindings created by the container. Starts one
+     * future per injection point of a binding created per injection point,
+     * and one for other scopes. Skips singletons which already exist
+     */
+    Map<AsyncInternalFactory<?>, Deque<CompletableFuture<?>>> startAsyncDependencies(
+            Key<?> key, InternalContext context){
+        AsyncPrefetch prefetch = new AsyncPrefetch(context);
+        if (!asyncFactories.isEmpty()){
+            prefetch.visit(key);
+        }
+        return prefetch.started;
+    }
+
+    /**
+     * Walks the injection points a lookup will construct, depth first with an
+     * explicit stack, and starts the async factories it meets
+     */
+    class AsyncPrefetch {
+
+        final InternalContext context;
+
+        final Map<AsyncInternalFactory<?>, Deque<CompletableFuture<?>>> started =
+                new HashMap<>();
+
+        /**
+         * Scoped bindings already followed, which are created once
+         */
+        final Set<Key<?>> visited = new HashSet<>();
+
+        /**
+         * Bindings on the search path. Injecting one of them again gets the
+         * reference being constructed
+         */
+        final Set<Key<?>> constructing = new HashSet<>();
+
+        AsyncPrefetch(InternalContext context){
+            this.context = context;
+        }
+
+        void visit(Key<?> root){
+            Deque<Frame> path = new ArrayDeque<>();
+            Frame frame = open(root);
+            if (frame != null){
+                path.push(frame);
+            }
+            while (!path.isEmpty()){
+                frame = path.peek();
+                if (frame.injectionPoints.hasNext()){
+                    Frame next = open(frame.injectionPoints.next());
+                    if (next != null){
+                        path.push(next);
+                    }
+                    continue;
+                }
+                path.pop();
+                constructing.remove(frame.key);
+            }
+        }
+
+        /**
+         * Starts the async factory of the given binding, or returns the
+         * injection points to follow if the container creates it. Returns
+         * null if there's nothing to follow
+         */
+        Frame open(Key<?> key){
+            if (constructing.contains(key)
+                    || (!unscoped.contains(key) && !visited.add(key))){
+                return null;
+            }
+            InternalFactory<?> factory = bindings.getFactory(key);
+            if (factory instanceof BindingMeter.MeteredFactory){
+                factory = ((BindingMeter.MeteredFactory<?>) factory).scoped;
+            }
+            if (factory instanceof SingletonFactory
+                    && ((SingletonFactory<?>) factory).instance != null){
+                return null;
+            }
+
+            AsyncInternalFactory<?> async = asyncFactories.get(key);
+            if (async != null){
+                context.setInjectionPoint(null, key);
+                Deque<CompletableFuture<?>> futures = started.get(async);
+                if (futures == null){
+                    futures = new ArrayDeque<>();
+                    started.put(async, futures);
+                }
+                futures.add(async.start(context));
+                return null;
+            }
+
+            Class<?> implementation = implementations.get(key);
+            if (implementation == null){
+                return null;
+            }
+            constructing.add(key);
+            return new Frame(key, getInjectionPoints(implementation).iterator());
+        }
+    }
+
+    /**
+     * A binding on the search path and the injection points left to visit
+     */
+    static class Frame {
+
+        final Key<?> key;
+        final Iterator<Key<?>> injectionPoints;
+
+        Frame(Key<?> key, Iterator<Key<?>> injectionPoints){
+            this.key = key;
+            this.injectionPoints = injectionPoints;
+        }
+    }
+
+    @Override
+    public <T> Provider<T> getProvider(Class<T> type, String name) {
+        Key<T> key = Key.newInstance(type, name);
+        InternalFactory<? extends T> factory = getFactory(key);
+        if (factory == null){
+            throw new DependencyException("No mapping found for dependency " + key + ".");
+        }
+        return new ProviderImpl<T>(factory, key);
+    }
+
+    @Override
+    public <T> Provider<T> getProvider(Class<T> type) {
+        return getProvider(type, DEFAULT_NAME);
+    }
+
+    /**
+     * Provider with a pre-resolved factory. Calls itself in context, so
+     * {@link #get()} doesn't allocate a callable either
+     */
+    class ProviderImpl<T> implements Provider<T>, ContextualCallable<T> {
+
+        final InternalFactory<? extends T> factory;
+        final Key<T> key;
+
+        ProviderImpl(InternalFactory<? extends T> factory, Key<T> key) {
+            this.factory = factory;
+            this.key = key;
+        }
+
+        @Override
+        public T get() {
+            return callInContext(this);
+        }
+
+        @Override
+        public T call(InternalContext context) {
+            context.setInjectionPoint(null, key);
+            return factory.create(context);
+        }
+
+        @Override
+        public String toString() {
+            return factory.toString();
+        }
+    }
+
     final ThreadLocal<Scope.Strategy> localScopeStrategy =
             new ThreadLocal<>();
 
@@ -541,4 +1248,39 @@ class ContainerImpl implements Container {
     public void removeScopeStrategy() {
         this.localScopeStrategy.remove();
     }
+
+    @Override
+    public RequestArena newRequestArena(Scope.Strategy delegate) {
+        return new RequestArena(this, requestSlots, delegate);
+    }
+
+    @Override
+    public void purgeThreadScope(Thread thread) {
+        threadScope.purge(thread);
+    }
+
+    @Override
+    public int sweepThreadScope() {
+        return threadScope.sweep();
+    }
+
+    @Override
+    public ThreadScopeStats getThreadScopeStats() {
+        return threadScope.stats();
+    }
+
+    @Override
+    public List<BindingMetrics> getBindingMetrics() {
+        return Arrays.asList(metrics.getBindingMetrics());
+    }
+
+    @Override
+    public BindingMetrics getBindingMetrics(Class<?> type, String name) {
+        return metrics.get(Key.newInstance(type, name));
+    }
+
+    @Override
+    public ContainerMetricsMXBean getMetricsMXBean() {
+        return metrics;
+    }
 }
@@ -0,0 +1,61 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.List;
+
+/**
+ * Binding metrics of a container
+ */
+final class ContainerMetrics implements ContainerMetricsMXBean {
+
+    final boolean enabled;
+    final BindingMeter[] meters;
+
+    ContainerMetrics(boolean enabled, List<BindingMeter> meters) {
+        this.enabled = enabled;
+        this.meters = meters.toArray(new BindingMeter[meters.size()]);
+    }
+
+    /**
+     * Gets the metrics of the given binding, or null if it isn't metered
+     */
+    BindingMetrics get(Key<?> key) {
+        for (BindingMeter meter : meters) {
+            if (meter.key.equals(key)) {
+                return meter.snapshot();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public BindingMetrics[] getBindingMetrics() {
+        BindingMetrics[] metrics = new BindingMetrics[meters.length];
+        for (int i = 0; i < meters.length; i++) {
+            metrics[i] = meters[i].snapshot();
+        }
+        return metrics;
+    }
+
+    @Override
+    public long getLookups() {
+        long lookups = 0;
+        for (BindingMeter meter : meters) {
+            lookups += meter.lookups.sum();
+        }
+        return lookups;
+    }
+
+    @Override
+    public long getCreations() {
+        long creations = 0;
+        for (BindingMeter meter : meters) {
+            creations += meter.creations.sum();
+        }
+        return creations;
+    }
+}
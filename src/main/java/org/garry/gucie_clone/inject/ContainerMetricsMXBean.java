@@ -0,0 +1,34 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * Management interface of a container's binding metrics. Register the bean
+ * from {@link Container#getMetricsMXBean()} with an MBean server:
+ *
+ * <pre>
+ *     ManagementFactory.getPlatformMBeanServer().registerMBean(
+ *             container.getMetricsMXBean(),
+ *             new ObjectName("org.garry.inject:type=Container,name=app"));
+ * </pre>
+ */
+public interface ContainerMetricsMXBean {
+
+    /**
+     * Whether the container records metrics
+     */
+    boolean isEnabled();
+
+    /**
+     * Metrics of the metered bindings
+     */
+    BindingMetrics[] getBindingMetrics();
+
+    /**
+     * Total lookups across metered bindings
+     */
+    long getLookups();
+
+    /**
+     * Total instances created across metered bindings
+     */
+    long getCreations();
+}
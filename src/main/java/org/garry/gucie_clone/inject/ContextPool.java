@@ -0,0 +1,58 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded pool of released internal contexts, held by a container with
+ * {@link ContextPropagation#SCOPED}. A call takes a context from the pool and
+ * puts it back when it returns, so contexts and their construction contexts
+ * are reused while threads keep nothing between calls. Sized by the number of
+ * processors, since only running calls hold contexts
+ */
+final class ContextPool {
+
+    final AtomicReferenceArray<InternalContext> contexts;
+    final int mask;
+
+    ContextPool(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1);
+        contexts = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Takes a released context, or creates one if the pool is empty
+     */
+    InternalContext acquire() {
+        int start = probe();
+        for (int i = 0; i <= mask; i++) {
+            int index = (start + i) & mask;
+            InternalContext context = contexts.get(index);
+            if (context != null && contexts.compareAndSet(index, context, null)) {
+                return context;
+            }
+        }
+        return new InternalContext();
+    }
+
+    /**
+     * Puts back a context which has exited. Drops it if the pool is full
+     */
+    void release(InternalContext context) {
+        int start = probe();
+        for (int i = 0; i <= mask; i++) {
+            int index = (start + i) & mask;
+            if (contexts.get(index) == null && contexts.compareAndSet(index, null, context)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Spreads threads over the pool, so they rarely contend for one slot
+     */
+    static int probe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 32));
+    }
+}
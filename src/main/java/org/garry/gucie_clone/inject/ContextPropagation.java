@@ -0,0 +1,27 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * How a {@link Container} finds the internal context of the current call.
+ * Set per container with
+ * {@link ContainerBuilder#contextPropagation(ContextPropagation)}
+ */
+public enum ContextPropagation {
+
+    /**
+     * Each thread keeps one context per container and reuses it across calls.
+     * Cheapest for a bounded number of long-lived platform threads
+     */
+    POOLED,
+
+    /**
+     * A context is bound to a thread only for the outermost call which entered
+     * it, and the thread keeps nothing once that call returns. The container
+     * keeps a small pool of released contexts, so calls reuse them rather than
+     * allocating. Suits servers running many short-lived virtual threads, where
+     * pooled contexts would be retained per virtual thread. Combine with
+     * {@link Container#callInScope(Scope.Strategy, java.util.concurrent.Callable)},
+     * which carries the scope strategy in the context, so scoped lookups don't
+     * read a thread local strategy
+     */
+    SCOPED
+}
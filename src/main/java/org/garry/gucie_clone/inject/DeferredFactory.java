@@ -0,0 +1,92 @@
+package org.garry.gucie_clone.inject;
+
+import java.lang.reflect.Member;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+/**
+ * Creates the {@link Provider} or {@link Lazy} injected in place of a
+ * dependency. Refers to the dependency's binding by id and creates providers
+ * for the container of the current injection, so it can live in injectors
+ * cached on a class
+ */
+class DeferredFactory<T> implements InternalFactory<Object> {
+
+    final Key<T> key;
+    final int binding;
+    final boolean lazy;
+
+    DeferredFactory(Key<T> key, int binding, boolean lazy) {
+        this.key = key;
+        this.binding = binding;
+        this.lazy = lazy;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object create(InternalContext context) {
+        ContainerImpl container = context.getContainerImpl();
+        Provider<T> provider = container.new ProviderImpl<T>(
+                (InternalFactory<? extends T>) container.bindings.getFactory(binding), key);
+        return lazy ? new LazyImpl<T>(provider) : provider;
+    }
+
+    /**
+     * Returns true if injection points of the given type get a provider or
+     * lazy instead of the dependency
+     */
+    static boolean isDeferred(Class<?> type) {
+        return type == Provider.class || type == javax.inject.Provider.class
+                || type == Lazy.class;
+    }
+
+    /**
+     * Gets the dependency type of a provider or lazy injection point
+     */
+    static Class<?> getProvidedType(Type type, Member member) {
+        if (type instanceof ParameterizedType) {
+            Type provided = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (provided instanceof Class) {
+                return (Class<?>) provided;
+            }
+        }
+        throw new DependencyException(type + " in " + member
+                + " must provide a class, for example Provider<Foo>.");
+    }
+
+    public String toString() {
+        return (lazy ? "Lazy" : "Provider") + key;
+    }
+
+    /**
+     * Memoizes the first instance of a provider
+     */
+    static class LazyImpl<T> implements Lazy<T> {
+
+        final Provider<T> provider;
+        volatile T instance;
+
+        LazyImpl(Provider<T> provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public T get() {
+            T t = instance;
+            if (t == null) {
+                synchronized (this) {
+                    t = instance;
+                    if (t == null) {
+                        instance = t = provider.get();
+                    }
+                }
+            }
+            return t;
+        }
+
+        @Override
+        public String toString() {
+            return "Lazy[" + provider + "]";
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.garry.gucie_clone.inject;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Sets an injected field to the value created by the field's factory. Finds
+ * the factory by binding id on each injection rather than holding it
+ */
+abstract class FieldSetter {
+
+    final Field field;
+    final int binding;
+
+    /**
+     * Creates the provider or lazy set in place of the dependency, or null
+     */
+    final DeferredFactory<?> deferred;
+
+    FieldSetter(Field field, int binding, DeferredFactory<?> deferred) {
+        this.field = field;
+        this.binding = binding;
+        this.deferred = deferred;
+    }
+
+    InternalFactory<?> factory(InternalContext context) {
+        return deferred != null ? deferred
+                : context.getContainerImpl().bindings.getFactory(binding);
+    }
+
+    /**
+     * Creates the value and sets it on the given object
+     * @param context of this injection
+     * @param o object to inject, null for static fields
+     */
+    abstract void set(InternalContext context, Object o);
+
+    /**
+     * Creates a setter for the given field. With {@link Invocation#METHOD_HANDLES},
+     * uses a pre-resolved {@link VarHandle} and sets {@code int}, {@code long},
+     * {@code double} and {@code boolean} fields without boxing when the factory
+     * is primitive aware. Falls back to reflection for final fields
+     */
+    static FieldSetter forField(Invocation invocation, Field field,
+                                InternalFactory<?> factory, int binding,
+                                DeferredFactory<?> deferred) {
+        if (invocation == Invocation.METHOD_HANDLES) {
+            MethodHandle handle = setterHandle(field);
+            if (handle != null) {
+                Class<?> type = field.getType();
+                if (type == int.class && factory instanceof PrimitiveFactory.OfInt) {
+                    return new IntSetter(field, binding, handle);
+                }
+                if (type == long.class && factory instanceof PrimitiveFactory.OfLong) {
+                    return new LongSetter(field, binding, handle);
+                }
+                if (type == double.class && factory instanceof PrimitiveFactory.OfDouble) {
+                    return new DoubleSetter(field, binding, handle);
+                }
+                if (type == boolean.class && factory instanceof PrimitiveFactory.OfBoolean) {
+                    return new BooleanSetter(field, binding, handle);
+                }
+                return new ObjectSetter(field, binding, deferred,
+                        handle.asType(MethodType.methodType(void.class, Object.class, Object.class)));
+            }
+        }
+        return new ReflectiveSetter(field, binding, deferred);
+    }
+
+    /**
+     * Returns a handle of type {@code (Object target, fieldType)void}, or null
+     * if the field can't be set through a var handle
+     */
+    static MethodHandle setterHandle(Field field) {
+        VarHandle varHandle;
+        try {
+            varHandle = MethodHandles.lookup().unreflectVarHandle(field);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+        // final fields get read only var handles
+        if (!varHandle.isAccessModeSupported(VarHandle.AccessMode.SET)) {
+            return null;
+        }
+
+        MethodHandle handle = varHandle.toMethodHandle(VarHandle.AccessMode.SET);
+        if (Modifier.isStatic(field.getModifiers())) {
+            // static fields ignore the target
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        return handle.asType(MethodType.methodType(void.class, Object.class, field.getType()));
+    }
+
+    static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new AssertionError(t);
+    }
+
+    static class ReflectiveSetter extends FieldSetter {
+
+        ReflectiveSetter(Field field, int binding, DeferredFactory<?> deferred) {
+            super(field, binding, deferred);
+        }
+
+        @Override
+        void set(InternalContext context, Object o) {
+            try {
+                field.set(o, factory(context).create(context));
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    static class ObjectSetter extends FieldSetter {
+
+        final MethodHandle handle;
+
+        ObjectSetter(Field field, int binding, DeferredFactory<?> deferred,
+                     MethodHandle handle) {
+            super(field, binding, deferred);
+            this.handle = handle;
+        }
+
+        @Override
+        void set(InternalContext context, Object o) {
+            Object value = factory(context).create(context);
+            try {
+                handle.invokeExact(o, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+    }
+
+    static class IntSetter extends FieldSetter {
+
+        final MethodHandle handle;
+
+        IntSetter(Field field, int binding, MethodHandle handle) {
+            super(field, binding, null);
+            this.handle = handle;
+        }
+
+        @Override
+        void set(InternalContext context, Object o) {
+            int value = ((PrimitiveFactory.OfInt) factory(context)).createInt(context);
+            try {
+                handle.invokeExact(o, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+    }
+
+    static class LongSetter extends FieldSetter {
+
+        final MethodHandle handle;
+
+        LongSetter(Field field, int binding, MethodHandle handle) {
+            super(field, binding, null);
+            this.handle = handle;
+        }
+
+        @Override
+        void set(InternalContext context, Object o) {
+            long value = ((PrimitiveFactory.OfLong) factory(context)).createLong(context);
+            try {
+                handle.invokeExact(o, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+    }
+
+    static class DoubleSetter extends FieldSetter {
+
+        final MethodHandle handle;
+
+        DoubleSetter(Field field, int binding, MethodHandle handle) {
+            super(field, binding, null);
+            this.handle = handle;
+        }
+
+        @Override
+        void set(InternalContext context, Object o) {
+            double value = ((PrimitiveFactory.OfDouble) factory(context)).createDouble(context);
+            try {
+                handle.invokeExact(o, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+    }
+
+    static class BooleanSetter extends FieldSetter {
+
+        final MethodHandle handle;
+
+        BooleanSetter(Field field, int binding, MethodHandle handle) {
+            super(field, binding, null);
+            this.handle = handle;
+        }
+
+        @Override
+        void set(InternalContext context, Object o) {
+            boolean value = ((PrimitiveFactory.OfBoolean) factory(context)).createBoolean(context);
+            try {
+                handle.invokeExact(o, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+    }
+}
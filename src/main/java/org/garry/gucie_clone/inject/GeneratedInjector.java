@@ -0,0 +1,139 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * Constructs and injects instances of a type without reflection. Generated at
+ * compile time by the optional annotation processor in the {@code processor}
+ * module for classes with {@link Inject} members:
+ *
+ * <pre>
+ *     dependencies {
+ *         annotationProcessor project(':processor')
+ *     }
+ * </pre>
+ *
+ * The generated class lives in the injected type's package and is named after
+ * the type's binary name plus {@link #SUFFIX}, i.e. {@code Foo$Bar$$Injector}.
+ * The processor lists the types it generated injectors for in {@link #INDEX}, and
+ * the container only looks for injectors of listed types. When present, the
+ * container uses it instead of scanning the type's constructors, fields and
+ * methods. Static members are still injected reflectively.
+ *
+ * <p>{@link Context#getMember()} returns null for dependencies injected through
+ * a generated injector.
+ *
+ * @param <T> injected type
+ */
+public abstract class GeneratedInjector<T> {
+
+    /**
+     * Appended to a type's binary name to get its generated injector's name
+     */
+    public static final String SUFFIX = "$$Injector";
+
+    /**
+     * Resource listing the binary names of types with generated injectors,
+     * one per line
+     */
+    public static final String INDEX = "META-INF/gucie_clone/generated-injectors";
+
+    /**
+     * Gets the dependencies of the constructor, empty for the no-arg constructor
+     * @return
+     */
+    public abstract Dependency[] constructorParameters();
+
+    /**
+     * Gets the instance fields and methods annotated with {@link Inject} in
+     * injection order, i.e. superclass members first, fields before methods
+     * @return
+     */
+    public abstract InjectionPoint[] members();
+
+    /**
+     * Invokes the constructor
+     * @param arguments one per {@link #constructorParameters()}
+     * @return the new instance
+     */
+    public abstract T newInstance(Object[] arguments) throws Throwable;
+
+    /**
+     * Injects a field or method
+     * @param member index into {@link #members()}
+     * @param instance to inject
+     * @param arguments one per {@link InjectionPoint#getParameters()}
+     */
+    public abstract void inject(int member, T instance, Object[] arguments) throws Throwable;
+
+    /**
+     * A dependency type and name
+     */
+    public static final class Dependency {
+
+        final Class<?> type;
+        final String name;
+
+        public Dependency(Class<?> type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        public Class<?> getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        Key<?> toKey() {
+            return Key.newInstance(type, name);
+        }
+    }
+
+    /**
+     * An injected field or method
+     */
+    public static final class InjectionPoint {
+
+        final String member;
+        final boolean required;
+        final Dependency[] parameters;
+
+        InjectionPoint(String member, boolean required, Dependency[] parameters) {
+            this.member = member;
+            this.required = required;
+            this.parameters = parameters;
+        }
+
+        /**
+         * An injected field
+         */
+        public static InjectionPoint field(String name, boolean required,
+                                           Dependency dependency) {
+            return new InjectionPoint(name, required, new Dependency[] {dependency});
+        }
+
+        /**
+         * An injected method
+         */
+        public static InjectionPoint method(String name, boolean required,
+                                            Dependency... parameters) {
+            return new InjectionPoint(name, required, parameters);
+        }
+
+        /**
+         * Gets the member name, used in error messages
+         */
+        public String getMember() {
+            return member;
+        }
+
+        public boolean isRequired() {
+            return required;
+        }
+
+        public Dependency[] getParameters() {
+            return parameters;
+        }
+    }
+}
@@ -1,29 +1,80 @@
 package org.garry.gucie_clone.inject;
 
-import java.util.HashMap;
+import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Internal context. Used to coordinate injections and support circular
- * dependencies
+ * dependencies. Each thread reuses one context per container, so a context
+ * is reset rather than discarded when its outermost call returns
  */
 class InternalContext {
 
+    static final ConstructionContext<?>[] NO_CONSTRUCTION_CONTEXTS =
+            new ConstructionContext<?>[0];
+
     // 一定要实现类了，因为这是粘合的起点
-    final ContainerImpl container;
+    // null between calls, so a pooled context doesn't keep its container alive
+    ContainerImpl container;
 
-    final Map<Object, ConstructionContext<?>> constructionContexts =
-            new HashMap<>();
+    /**
+     * Construction contexts indexed by {@link ContainerImpl.ConstructorInjector#id}.
+     * Kept across calls since constructions leave them clean
+     */
+    ConstructionContext<?>[] constructionContexts = NO_CONSTRUCTION_CONTEXTS;
 
     // scope 策略
     Scope.Strategy scopeStrategy;
-    // 对外的快照上下文
+    /*
+     * Current injection point. Injection points only record their member and
+     * key here, and the external context is materialized when a factory asks
+     * for it. Factories which need the injection point read it before creating
+     * their own dependencies, so it isn't restored when an injection returns.
+     */
+    Member member;
+    Key<?> key;
+
+    // 对外的快照上下文 materialized on demand
     ExternalContext<?> externalContext;
 
-    InternalContext(ContainerImpl container) {
+    /**
+     * Instances scoped to the outermost call, by scoped factory. Created lazily
+     */
+    Map<Object, Object> callScoped;
+
+    /**
+     * Futures of async factories started ahead of an asynchronous lookup, one
+     * per injection point
+     */
+    Map<AsyncInternalFactory<?>, Deque<CompletableFuture<?>>> prefetched;
+
+    InternalContext() {}
+
+    boolean isActive() {
+        return container != null;
+    }
+
+    void enter(ContainerImpl container) {
         this.container = container;
     }
 
+    /**
+     * Resets this context once the outermost call returns
+     */
+    void exit() {
+        container = null;
+        scopeStrategy = null;
+        member = null;
+        key = null;
+        externalContext = null;
+        callScoped = null;
+        prefetched = null;
+    }
+
     public Container getContainer() {
         return container;
     }
@@ -45,21 +96,75 @@ class InternalContext {
         return scopeStrategy;
     }
 
+    /**
+     * Records the current injection point without allocating
+     * @param member injected member, or null
+     * @param key of the injected dependency
+     */
+    void setInjectionPoint(Member member, Key<?> key){
+        this.member = member;
+        this.key = key;
+        this.externalContext = null;
+    }
+
+    Member getMember(){
+        return member;
+    }
+
     <T> ExternalContext<T> getExternalContext(){
+        if (externalContext == null && key != null){
+            externalContext = ExternalContext.newInstance(member, key, container);
+        }
         return (ExternalContext)externalContext;
     }
 
-    void setExternalContext(ExternalContext<?> externalContext){
-        this.externalContext = externalContext;
+    /**
+     * Finds the instance the given scoped factory created during the outermost
+     * call, creating it if necessary
+     */
+    @SuppressWarnings("unchecked")
+    <T> T findInCall(Object scopedFactory, InternalFactory<? extends T> factory){
+        if (callScoped == null){
+            callScoped = new IdentityHashMap<>();
+        }
+        T t = (T) callScoped.get(scopedFactory);
+        if (t == null){
+            t = factory.create(this);
+            callScoped.put(scopedFactory, t);
+        }
+        return t;
+    }
+
+    /**
+     * Gets the future started for the given factory ahead of an asynchronous
+     * lookup. Singletons share theirs between injection points. Other bindings
+     * hand the next of theirs to each injection point, or null once used up
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> getPrefetched(AsyncInternalFactory<T> factory){
+        if (prefetched == null){
+            return null;
+        }
+        Deque<CompletableFuture<?>> futures = prefetched.get(factory);
+        if (futures == null){
+            return null;
+        }
+        return (CompletableFuture<T>) (factory.singleton ? futures.peek() : futures.poll());
     }
 
-    <T> ConstructionContext<T> getConstructionContext(Object key){
+    @SuppressWarnings("unchecked")
+    <T> ConstructionContext<T> getConstructionContext(int id){
+        if (id >= constructionContexts.length){
+            constructionContexts = Arrays.copyOf(constructionContexts,
+                    Math.max(id + 1, constructionContexts.length * 2));
+        }
 
-        ConstructionContext constructionContext = constructionContexts.get(key);
+        ConstructionContext<T> constructionContext =
+                (ConstructionContext<T>) constructionContexts[id];
 
         if (constructionContext == null){
             constructionContext = new ConstructionContext<T>();
-            constructionContexts.put(key,constructionContext);
+            constructionContexts[id] = constructionContext;
         }
         return constructionContext;
     }
@@ -0,0 +1,26 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * How a {@link Container} invokes injectable constructors and methods, and sets
+ * injected fields. Set per container
+ * with {@link ContainerBuilder#invocation(Invocation)}
+ */
+public enum Invocation {
+
+    /**
+     * Invokes members through core reflection, i.e.
+     * {@link java.lang.reflect.Constructor#newInstance(Object...)}
+     */
+    REFLECTION,
+
+    /**
+     * Invokes members through pre-resolved method handles. Members with up to
+     * four parameters get an arity-specialized invoker which doesn't allocate a
+     * parameter array. Fields are set through var handles, and primitive constants
+     * are injected into {@code int}, {@code long}, {@code double} and
+     * {@code boolean} fields without boxing. Falls back to {@link #REFLECTION}
+     * for members which can't be unreflected, final fields, and members
+     * with more parameters
+     */
+    METHOD_HANDLES
+}
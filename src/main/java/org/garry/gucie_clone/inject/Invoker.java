@@ -0,0 +1,249 @@
+package org.garry.gucie_clone.inject;
+
+import org.garry.gucie_clone.inject.ContainerImpl.ParameterInjector;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Invokes an injectable constructor or method, pulling its arguments from the member's
+ * parameter injectors
+ */
+abstract class Invoker {
+
+    /**
+     * Method handle invokers are specialized for up to this many parameters
+     */
+    static final int MAX_SPECIALIZED_ARITY = 4;
+
+    static final ParameterInjector<?>[] NO_PARAMETERS = new ParameterInjector<?>[0];
+
+    final Member member;
+    final ParameterInjector<?>[] parameterInjectors;
+
+    Invoker(Member member, ParameterInjector<?>[] parameterInjectors) {
+        this.member = member;
+        this.parameterInjectors = parameterInjectors == null
+                ? NO_PARAMETERS : parameterInjectors;
+    }
+
+    /**
+     * Injects the parameters and invokes the member
+     * @param context of this injection
+     * @param target object to invoke the member on, ignored by constructors
+     * @return the new instance for constructors
+     */
+    abstract Object invoke(InternalContext context, Object target)
+            throws InstantiationException, IllegalAccessException, InvocationTargetException;
+
+    /**
+     * Creates an invoker for the given constructor
+     */
+    static Invoker forConstructor(Invocation invocation, final Constructor<?> constructor,
+                                  ParameterInjector<?>[] parameterInjectors) {
+        if (invocation == Invocation.METHOD_HANDLES) {
+            try {
+                MethodHandle handle = MethodHandles.lookup().unreflectConstructor(constructor);
+                // constructors ignore the target
+                handle = MethodHandles.dropArguments(
+                        handle.asType(MethodType.genericMethodType(handle.type().parameterCount())),
+                        0, Object.class);
+                Invoker invoker = forHandle(constructor, handle, parameterInjectors);
+                if (invoker != null) {
+                    return invoker;
+                }
+            } catch (IllegalAccessException e) {
+                // fall back to reflection
+            }
+        }
+
+        return new Invoker(constructor, parameterInjectors) {
+            @Override
+            Object invoke(InternalContext context, Object target)
+                    throws InstantiationException, IllegalAccessException, InvocationTargetException {
+                return constructor.newInstance(
+                        ContainerImpl.getParameters(member, context, this.parameterInjectors));
+            }
+        };
+    }
+
+    /**
+     * Creates an invoker for the given method. Static methods ignore the target
+     */
+    static Invoker forMethod(Invocation invocation, final Method method,
+                             ParameterInjector<?>[] parameterInjectors) {
+        if (invocation == Invocation.METHOD_HANDLES) {
+            try {
+                MethodHandle handle = MethodHandles.lookup().unreflect(method);
+                if (Modifier.isStatic(method.getModifiers())) {
+                    handle = MethodHandles.dropArguments(handle, 0, Object.class);
+                }
+                handle = handle.asType(
+                        MethodType.genericMethodType(handle.type().parameterCount()));
+                Invoker invoker = forHandle(method, handle, parameterInjectors);
+                if (invoker != null) {
+                    return invoker;
+                }
+            } catch (IllegalAccessException e) {
+                // fall back to reflection
+            }
+        }
+
+        return new Invoker(method, parameterInjectors) {
+            @Override
+            Object invoke(InternalContext context, Object target)
+                    throws IllegalAccessException, InvocationTargetException {
+                return method.invoke(target,
+                        ContainerImpl.getParameters(member, context, this.parameterInjectors));
+            }
+        };
+    }
+
+    /**
+     * Creates an invoker for the constructor of a generated injector
+     */
+    static Invoker forGenerated(final GeneratedInjector<?> generated,
+                                ParameterInjector<?>[] parameterInjectors) {
+        return new Invoker(null, parameterInjectors) {
+            @Override
+            Object invoke(InternalContext context, Object target) throws InvocationTargetException {
+                Object[] arguments = ContainerImpl.getParameters(
+                        member, context, this.parameterInjectors);
+                try {
+                    return generated.newInstance(arguments);
+                } catch (Throwable t) {
+                    throw new InvocationTargetException(t);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates an arity-specialized invoker for a handle of type
+     * {@code (Object target, Object... parameters)Object}. Returns null if
+     * the member has too many parameters
+     */
+    static Invoker forHandle(Member member, MethodHandle handle,
+                             ParameterInjector<?>[] parameterInjectors) {
+        int arity = handle.type().parameterCount() - 1;
+        switch (arity) {
+            case 0: return new Handle0(member, handle, parameterInjectors);
+            case 1: return new Handle1(member, handle, parameterInjectors);
+            case 2: return new Handle2(member, handle, parameterInjectors);
+            case 3: return new Handle3(member, handle, parameterInjectors);
+            case 4: return new Handle4(member, handle, parameterInjectors);
+            default: return null;
+        }
+    }
+
+    static class Handle0 extends Invoker {
+
+        final MethodHandle handle;
+
+        Handle0(Member member, MethodHandle handle, ParameterInjector<?>[] parameterInjectors) {
+            super(member, parameterInjectors);
+            this.handle = handle;
+        }
+
+        @Override
+        Object invoke(InternalContext context, Object target) throws InvocationTargetException {
+            try {
+                return (Object) handle.invokeExact(target);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+
+    static class Handle1 extends Invoker {
+
+        final MethodHandle handle;
+
+        Handle1(Member member, MethodHandle handle, ParameterInjector<?>[] parameterInjectors) {
+            super(member, parameterInjectors);
+            this.handle = handle;
+        }
+
+        @Override
+        Object invoke(InternalContext context, Object target) throws InvocationTargetException {
+            Object p0 = parameterInjectors[0].inject(member, context);
+            try {
+                return (Object) handle.invokeExact(target, p0);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+
+    static class Handle2 extends Invoker {
+
+        final MethodHandle handle;
+
+        Handle2(Member member, MethodHandle handle, ParameterInjector<?>[] parameterInjectors) {
+            super(member, parameterInjectors);
+            this.handle = handle;
+        }
+
+        @Override
+        Object invoke(InternalContext context, Object target) throws InvocationTargetException {
+            Object p0 = parameterInjectors[0].inject(member, context);
+            Object p1 = parameterInjectors[1].inject(member, context);
+            try {
+                return (Object) handle.invokeExact(target, p0, p1);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+
+    static class Handle3 extends Invoker {
+
+        final MethodHandle handle;
+
+        Handle3(Member member, MethodHandle handle, ParameterInjector<?>[] parameterInjectors) {
+            super(member, parameterInjectors);
+            this.handle = handle;
+        }
+
+        @Override
+        Object invoke(InternalContext context, Object target) throws InvocationTargetException {
+            Object p0 = parameterInjectors[0].inject(member, context);
+            Object p1 = parameterInjectors[1].inject(member, context);
+            Object p2 = parameterInjectors[2].inject(member, context);
+            try {
+                return (Object) handle.invokeExact(target, p0, p1, p2);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+
+    static class Handle4 extends Invoker {
+
+        final MethodHandle handle;
+
+        Handle4(Member member, MethodHandle handle, ParameterInjector<?>[] parameterInjectors) {
+            super(member, parameterInjectors);
+            this.handle = handle;
+        }
+
+        @Override
+        Object invoke(InternalContext context, Object target) throws InvocationTargetException {
+            Object p0 = parameterInjectors[0].inject(member, context);
+            Object p1 = parameterInjectors[1].inject(member, context);
+            Object p2 = parameterInjectors[2].inject(member, context);
+            Object p3 = parameterInjectors[3].inject(member, context);
+            try {
+                return (Object) handle.invokeExact(target, p0, p1, p2, p3);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+}
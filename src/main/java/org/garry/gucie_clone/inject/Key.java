@@ -27,7 +27,11 @@ class Key<T> {
         this.type = type;
         this.name = name;
 
-        hashCode = type.hashCode() * 31 + name.hashCode();
+        hashCode = hashCode(type, name);
+    }
+
+    static int hashCode(Class<?> type, String name) {
+        return type.hashCode() * 31 + name.hashCode();
     }
 
     Class<T> getType() {
@@ -0,0 +1,23 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * A dependency which is created on first use, then remembered. Inject
+ * {@code Lazy<T>} in place of {@code T} to defer creating a collaborator
+ * which is expensive and rarely used:
+ *
+ * <pre>
+ *     &#64;Inject Lazy&lt;ReportGenerator&gt; reports;
+ * </pre>
+ *
+ * Each injection gets its own {@code Lazy}, which creates at most one instance.
+ * Thread safe
+ * @param <T>
+ */
+public interface Lazy<T> {
+
+    /**
+     * Gets the instance, creating it on the first call
+     * @return
+     */
+    T get();
+}
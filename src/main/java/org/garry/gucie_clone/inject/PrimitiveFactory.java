@@ -0,0 +1,26 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * Internal factories which create primitive values without boxing. Primitive
+ * constants implement these so field injectors can set primitive fields directly
+ */
+final class PrimitiveFactory {
+
+    private PrimitiveFactory() {}
+
+    interface OfInt {
+        int createInt(InternalContext context);
+    }
+
+    interface OfLong {
+        long createLong(InternalContext context);
+    }
+
+    interface OfDouble {
+        double createDouble(InternalContext context);
+    }
+
+    interface OfBoolean {
+        boolean createBoolean(InternalContext context);
+    }
+}
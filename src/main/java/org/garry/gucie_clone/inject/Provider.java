@@ -0,0 +1,19 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * Provides instances of a dependency. Obtained from
+ * {@link Container#getProvider(Class, String)}, or injected in place of the
+ * dependency. Either way the binding is resolved once, so {@link #get()} skips
+ * the lookup. Injection points may also be declared as
+ * {@link javax.inject.Provider}. Thread safe
+ * @param <T>
+ */
+public interface Provider<T> extends javax.inject.Provider<T> {
+
+    /**
+     * Gets an instance of the dependency, scoped according to its binding
+     * @return
+     */
+    @Override
+    T get();
+}
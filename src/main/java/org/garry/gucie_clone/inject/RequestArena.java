@@ -0,0 +1,81 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Request scope backed by a flat array. The container gives each
+ * {@link Scope#REQUEST} binding a slot when it is created, so finding an
+ * instance is an array access. Create one arena per request with
+ * {@link Container#newRequestArena(Scope.Strategy)} and drop it when the
+ * request ends:
+ *
+ * <pre>
+ *     container.callInScope(container.newRequestArena(sessions), handler);
+ * </pre>
+ *
+ * Session and wizard lookups, and request lookups by other containers, go
+ * to the delegate strategy. Not thread safe, a request runs on one thread at
+ * a time
+ */
+public final class RequestArena implements Scope.Strategy {
+
+    /**
+     * Marks a slot whose instance is being created
+     */
+    static final Object CREATING = new Object();
+
+    final ContainerImpl container;
+    final Object[] instances;
+    final Scope.Strategy delegate;
+
+    RequestArena(ContainerImpl container, int slots, Scope.Strategy delegate) {
+        this.container = container;
+        this.instances = new Object[slots];
+        this.delegate = delegate;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T find(int slot, RequestScopedFactory<T> scoped, InternalContext context) {
+        Object t = instances[slot];
+        if (t == CREATING) {
+            // re-entered while injecting the instance, the construction context
+            // hands back the reference being created
+            return scoped.factory.create(context);
+        }
+        if (t == null) {
+            instances[slot] = CREATING;
+            try {
+                t = scoped.factory.create(context);
+            } finally {
+                // null if creation failed
+                instances[slot] = t;
+            }
+        }
+        return (T) t;
+    }
+
+    @Override
+    public <T> T findInRequest(Class<T> type, String name,
+                               Callable<? extends T> factory) throws Exception {
+        return delegate().findInRequest(type, name, factory);
+    }
+
+    @Override
+    public <T> T findInSession(Class<T> type, String name,
+                               Callable<? extends T> factory) throws Exception {
+        return delegate().findInSession(type, name, factory);
+    }
+
+    @Override
+    public <T> T findInWizard(Class<T> type, String name,
+                              Callable<? extends T> factory) throws Exception {
+        return delegate().findInWizard(type, name, factory);
+    }
+
+    Scope.Strategy delegate() {
+        if (delegate == null) {
+            throw new IllegalStateException("Request arena has no delegate strategy.");
+        }
+        return delegate;
+    }
+}
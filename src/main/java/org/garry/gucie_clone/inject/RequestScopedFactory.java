@@ -0,0 +1,54 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * Factory of a {@link Scope#REQUEST} binding. Keeps instances in the slot the
+ * builder assigned to the binding when the request's strategy is a
+ * {@link RequestArena} of the same container, and asks the strategy otherwise
+ */
+class RequestScopedFactory<T> implements InternalFactory<T> {
+
+    /**
+     * Marks a binding without a slot
+     */
+    static final int NO_SLOT = -1;
+
+    final Class<T> type;
+    final String name;
+    final InternalFactory<? extends T> factory;
+    final int slot;
+
+    RequestScopedFactory(Class<T> type, String name,
+                         InternalFactory<? extends T> factory, int slot) {
+        this.type = type;
+        this.name = name;
+        this.factory = factory;
+        this.slot = slot;
+    }
+
+    @Override
+    public T create(InternalContext context) {
+        Scope.Strategy strategy = context.getScopeStrategy();
+        ScopeLookupEvent event = new ScopeLookupEvent();
+        event.begin();
+        try {
+            if (slot != NO_SLOT && strategy instanceof RequestArena) {
+                RequestArena arena = (RequestArena) strategy;
+                if (arena.container == context.getContainerImpl()) {
+                    return arena.find(slot, this, context);
+                }
+            }
+
+            try {
+                return strategy.findInRequest(type, name, Scope.REQUEST.toCallable(context, factory));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        } finally {
+            event.commit(Scope.REQUEST, type, name, strategy);
+        }
+    }
+
+    public String toString() {
+        return factory.toString();
+    }
+}
@@ -25,44 +25,28 @@ public enum Scope {
     SINGLETON {
         <T> InternalFactory<? extends T> scopeFactory(Class<T> type, String name,
                                                       final InternalFactory<? extends T> factory){
-            return new InternalFactory<T>() {
-                T instance;
-                @Override
-                public T create(InternalContext context) {
-                    synchronized (context.getContainer()){
-                        if (instance == null){
-                            instance = factory.create(context);
-                        }
-                        return instance;
-                    }
-                }
-                public String toString(){
-                    return factory.toString();
-                }
-            };
+            return new SingletonFactory<T>(factory);
         }
     },
 
     /**
      * One instance per thread
      *
-     * if a thread local object strongly reference its {@link Container},
-     * neither the {@code Container} nor the object will be
-     * eligible for garbage collection, i.e. memory leak
+     * The container holds the instances, so they don't outlive it. Each thread
+     * keeps its most recently used instances, up to
+     * {@link ContainerBuilder#threadScopeLimit(int)}. Release a thread's instances
+     * with {@link Container#purgeThreadScope(Thread)}, and those of terminated
+     * threads with {@link Container#sweepThreadScope()}
+     *
+     * Every virtual thread gets its own instance too, see {@link #PLATFORM_THREAD}
      */
 
     THREAD {
         <T> InternalFactory<? extends T> scopeFactory(Class<T> type, String name,
                 final InternalFactory<? extends T> factory){
             return new InternalFactory<T>(){
-                final ThreadLocal<T> threadLocal = new ThreadLocal<T>();
                 public T create(final InternalContext context){
-                    T t = threadLocal.get();
-                    if (t == null){
-                        t = factory.create(context);
-                        threadLocal.set(t);
-                    }
-                    return t;
+                    return context.getContainerImpl().threadScope.find(this, factory, context);
                 }
 
                 public String toString(){
@@ -73,21 +57,23 @@ public enum Scope {
     },
 
     /**
-     * One instance per request
+     * One instance per platform thread. Virtual threads don't get their own
+     * instances, since there may be millions of them and they may move between
+     * carrier threads. Instead, each outermost container call made on a virtual
+     * thread gets one instance, which it doesn't keep after it returns
+     *
+     * Platform thread instances are held like {@link #THREAD} instances, so
+     * the same limit, purging and sweeping apply
      */
-    REQUEST{
-        <T> InternalFactory<? extends T> scopeFactory(final Class<T> type,
-                                                      final String name,final InternalFactory<? extends T> factory){
-            return new InternalFactory<T>() {
-                @Override
-                public T create(InternalContext context) {
-                    Strategy strategy = context.getScopeStrategy();
-                    try {
-                        return strategy.findInRequest(
-                                type, name, toCallable(context, factory));
-                    }catch (Exception e){
-                        throw new RuntimeException(e);
+    PLATFORM_THREAD {
+        <T> InternalFactory<? extends T> scopeFactory(Class<T> type, String name,
+                final InternalFactory<? extends T> factory){
+            return new InternalFactory<T>(){
+                public T create(final InternalContext context){
+                    if (Threads.isVirtual(Thread.currentThread())){
+                        return context.findInCall(this, factory);
                     }
+                    return context.getContainerImpl().threadScope.find(this, factory, context);
                 }
 
                 public String toString(){
@@ -97,6 +83,18 @@ public enum Scope {
         }
     },
 
+    /**
+     * One instance per request
+     */
+    REQUEST{
+        <T> InternalFactory<? extends T> scopeFactory(final Class<T> type,
+                                                      final String name,final InternalFactory<? extends T> factory){
+            // the builder gives bindings a slot in request arenas
+            return new RequestScopedFactory<T>(type, name, factory,
+                    RequestScopedFactory.NO_SLOT);
+        }
+    },
+
     /**
      * One instance per session.
      */
@@ -106,11 +104,15 @@ public enum Scope {
             return new InternalFactory<T>() {
                 public T create(InternalContext context) {
                     Strategy strategy = context.getScopeStrategy();
+                    ScopeLookupEvent event = new ScopeLookupEvent();
+                    event.begin();
                     try {
                         return strategy.findInSession(
                                 type, name, toCallable(context, factory));
                     } catch (Exception e) {
                         throw new RuntimeException(e);
+                    } finally {
+                        event.commit(SESSION, type, name, strategy);
                     }
                 }
 
@@ -130,11 +132,15 @@ public enum Scope {
             return new InternalFactory<T>() {
                 public T create(InternalContext context) {
                     Strategy strategy = context.getScopeStrategy();
+                    ScopeLookupEvent event = new ScopeLookupEvent();
+                    event.begin();
                     try {
                         return strategy.findInWizard(
                                 type, name, toCallable(context, factory));
                     } catch (Exception e) {
                         throw new RuntimeException(e);
+                    } finally {
+                        event.commit(WIZARD, type, name, strategy);
                     }
                 }
 
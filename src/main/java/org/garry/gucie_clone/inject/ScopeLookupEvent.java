@@ -0,0 +1,45 @@
+package org.garry.gucie_clone.inject;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for a lookup through a {@link Scope.Strategy},
+ * including the creation of the instance when the scope doesn't hold one
+ */
+@Name("org.garry.inject.ScopeLookup")
+@Label("Scope Lookup")
+@Category({"Dependency Injection", "Scope"})
+@Description("Lookup of a request, session or wizard scoped instance")
+@Threshold("1 ms")
+final class ScopeLookupEvent extends jdk.jfr.Event {
+
+    @Label("Scope")
+    String scope;
+
+    @Label("Type")
+    Class<?> type;
+
+    @Label("Name")
+    String name;
+
+    @Label("Strategy")
+    Class<?> strategy;
+
+    /**
+     * Ends the lookup. The strategy is null if the thread had none
+     */
+    void commit(Scope scope, Class<?> type, String name, Scope.Strategy strategy) {
+        end();
+        if (shouldCommit()) {
+            this.scope = scope.name();
+            this.type = type;
+            this.name = name;
+            this.strategy = strategy == null ? null : strategy.getClass();
+            commit();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent store for {@link Scope#REQUEST} and {@link Scope#SESSION}
+ * instances. Open a {@link Scope.Strategy} per request and pass it to
+ * {@link Container#callInScope(Scope.Strategy, Callable)}:
+ *
+ * <pre>
+ *     ScopeStore store = new ScopeStore(30, TimeUnit.MINUTES, 100000);
+ *     ...
+ *     container.callInScope(store.open(sessionId), handler);
+ * </pre>
+ *
+ * Request instances live in small arrays owned by the request. Session
+ * instances are created once per session even when requests of one session
+ * run concurrently, and a request remembers the session instances it has
+ * looked up. Sessions idle for longer than the time to live are released, and
+ * the least recently used sessions are released beyond the maximum number
+ * of sessions. {@link Scope#WIZARD} lookups go to the strategy given to
+ * {@link #open(String, Scope.Strategy)}
+ */
+public final class ScopeStore {
+
+    final long timeToLiveNanos;
+    final int maxSessions;
+
+    final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong sessionHits = new AtomicLong();
+    final AtomicLong sessionMisses = new AtomicLong();
+    final AtomicLong expired = new AtomicLong();
+    final AtomicLong evicted = new AtomicLong();
+
+    final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * Holders which threads are currently blocked on. Used to detect
+     * circular creation across requests of one session
+     */
+    final ConcurrentMap<Thread, Holder> blocked = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeToLive how long a session may stay idle
+     * @param unit of the time to live
+     * @param maxSessions maximum number of sessions kept
+     */
+    public ScopeStore(long timeToLive, TimeUnit unit, int maxSessions) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive.");
+        }
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("Maximum number of sessions must be positive.");
+        }
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Opens a request of the given session. The returned strategy isn't thread
+     * safe, a request runs on one thread at a time
+     * @param sessionId session of the request, or null for a request without
+     *  a session
+     * @return scope strategy of the request
+     */
+    public Scope.Strategy open(String sessionId) {
+        return open(sessionId, null);
+    }
+
+    /**
+     * Opens a request of the given session, with wizard lookups going to the
+     * given strategy
+     * @param sessionId session of the request, or null for a request without
+     *  a session
+     * @param delegate strategy for wizard lookups, or null if wizard scoped
+     *  instances aren't used
+     * @return scope strategy of the request
+     */
+    public Scope.Strategy open(String sessionId, Scope.Strategy delegate) {
+        requests.incrementAndGet();
+        if (sessionId == null) {
+            return new Request(null, delegate);
+        }
+
+        long now = System.nanoTime();
+        Session session = sessions.get(sessionId);
+        if (session != null && session.isExpired(now)) {
+            if (sessions.remove(sessionId, session)) {
+                expired.incrementAndGet();
+            }
+            session = null;
+        }
+        if (session == null) {
+            Session created = new Session(now);
+            session = sessions.putIfAbsent(sessionId, created);
+            if (session == null) {
+                session = created;
+                if (sessions.size() > maxSessions) {
+                    evict(now);
+                }
+            }
+        }
+        session.lastAccess = now;
+        return new Request(session, delegate);
+    }
+
+    /**
+     * Releases the instances of the given session
+     */
+    public void invalidate(String sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    /**
+     * Releases the instances of sessions which have been idle for longer than
+     * the time to live. Expired sessions are also released when their next
+     * request opens, and as new sessions exceed the maximum
+     * @return number of sessions released
+     */
+    public int cleanUp() {
+        return expire(System.nanoTime());
+    }
+
+    int expire(long now) {
+        int count = 0;
+        for (Iterator<Session> i = sessions.values().iterator(); i.hasNext(); ) {
+            if (i.next().isExpired(now)) {
+                i.remove();
+                count++;
+            }
+        }
+        expired.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Makes room after adding a session. Releases expired sessions, then the
+     * least recently used ones, down to {@link #EVICTION_BATCH} below the
+     * maximum in one pass. The sessions added until the store is full again
+     * don't evict, which keeps the scan's cost per session constant. Other
+     * threads adding sessions meanwhile don't wait for a running eviction
+     */
+    void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int target = maxSessions - maxSessions / EVICTION_BATCH;
+            int excess = sessions.size() - target;
+            // the most recently used of the eldest sessions comes first
+            PriorityQueue<Candidate> eldest = new PriorityQueue<>(Math.max(1, excess + 1));
+            for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                Session session = entry.getValue();
+                if (session.isExpired(now)) {
+                    if (sessions.remove(entry.getKey(), session)) {
+                        expired.incrementAndGet();
+                        excess--;
+                    }
+                    continue;
+                }
+                if (excess > 0) {
+                    eldest.add(new Candidate(entry.getKey(), session));
+                    if (eldest.size() > excess) {
+                        eldest.poll();
+                    }
+                }
+            }
+
+            Candidate[] candidates = eldest.toArray(new Candidate[eldest.size()]);
+            Arrays.sort(candidates, Collections.reverseOrder());
+            for (Candidate candidate : candidates) {
+                if (sessions.size() <= target) {
+                    break;
+                }
+                if (sessions.remove(candidate.sessionId, candidate.session)) {
+                    evicted.incrementAndGet();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Fraction of the maximum number of sessions evicted at once, i.e. 1/16
+     */
+    static final int EVICTION_BATCH = 16;
+
+    /**
+     * A session considered for eviction, with its last access at the time
+     */
+    static class Candidate implements Comparable<Candidate> {
+
+        final String sessionId;
+        final Session session;
+        final long lastAccess;
+
+        Candidate(String sessionId, Session session) {
+            this.sessionId = sessionId;
+            this.session = session;
+            this.lastAccess = session.lastAccess;
+        }
+
+        /**
+         * Orders more recently used sessions first
+         */
+        @Override
+        public int compareTo(Candidate other) {
+            return Long.signum(other.lastAccess - lastAccess);
+        }
+    }
+
+    public ScopeStoreStats getStats() {
+        return new ScopeStoreStats(sessions.size(), requests.get(), sessionHits.get(),
+                sessionMisses.get(), expired.get(), evicted.get());
+    }
+
+    class Session {
+
+        final ConcurrentHashMap<Key<?>, Holder> instances = new ConcurrentHashMap<>();
+
+        volatile long lastAccess;
+
+        Session(long now) {
+            this.lastAccess = now;
+        }
+
+        boolean isExpired(long now) {
+            return now - lastAccess > timeToLiveNanos;
+        }
+
+        Object find(Class<?> type, String name, Callable<?> factory) throws Exception {
+            Key<?> key = Key.newInstance(type, name);
+            Holder holder = instances.get(key);
+            if (holder == null) {
+                Holder created = new Holder();
+                holder = instances.putIfAbsent(key, created);
+                if (holder == null) {
+                    holder = created;
+                }
+            }
+            return holder.get(key, factory);
+        }
+    }
+
+    /**
+     * Creates a session instance once. Other requests of the session wait for
+     * the request creating it. Waiting threads park on a lock rather than a
+     * monitor, and a request which would wait on a creation that waits on it
+     * fails with a {@link DependencyException} instead of deadlocking. The
+     * creating thread itself coming back calls the factory again
+     */
+    class Holder {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        volatile Object value;
+
+        /**
+         * Thread currently creating the value
+         */
+        volatile Thread creator;
+
+        Object get(Key<?> key, Callable<?> factory) throws Exception {
+            Object v = value;
+            if (v != null) {
+                sessionHits.incrementAndGet();
+                return v;
+            }
+
+            Thread current = Thread.currentThread();
+            if (creator == current) {
+                // re-entered while injecting the value, the construction
+                // context hands back the reference being created
+                return factory.call();
+            }
+            if (!lock.tryLock()) {
+                blocked.put(current, this);
+                try {
+                    checkForCycle(current, key);
+                    lock.lock();
+                } finally {
+                    blocked.remove(current);
+                }
+            }
+
+            try {
+                if (value != null) {
+                    sessionHits.incrementAndGet();
+                    return value;
+                }
+                sessionMisses.incrementAndGet();
+                creator = current;
+                try {
+                    value = factory.call();
+                    return value;
+                } finally {
+                    creator = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Follows the chain of threads creating session instances and the
+         * holders they are blocked on. Throws if it leads back to the current
+         * thread
+         */
+        void checkForCycle(Thread current, Key<?> key) {
+            Holder holder = this;
+            for (int i = 0; holder != null && i <= blocked.size(); i++) {
+                Thread owner = holder.creator;
+                if (owner == null) {
+                    return;
+                }
+                if (owner == current) {
+                    throw new DependencyException("Circular dependency between session "
+                            + "scoped instances created by concurrent requests, involving "
+                            + key + ".");
+                }
+                holder = blocked.get(owner);
+            }
+        }
+    }
+
+    /**
+     * Scope strategy of one request
+     */
+    class Request implements Scope.Strategy {
+
+        final Session session;
+        final Scope.Strategy delegate;
+
+        final Slots requestInstances = new Slots();
+
+        /**
+         * Session instances this request has looked up
+         */
+        final Slots sessionInstances = new Slots();
+
+        Request(Session session, Scope.Strategy delegate) {
+            this.session = session;
+            this.delegate = delegate;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T findInRequest(Class<T> type, String name,
+                                   Callable<? extends T> factory) throws Exception {
+            int i = requestInstances.indexOf(type, name);
+            if (i >= 0) {
+                Object t = requestInstances.values[i];
+                if (t == Slots.CREATING) {
+                    // re-entered while injecting the instance
+                    return factory.call();
+                }
+                return (T) t;
+            }
+
+            i = requestInstances.add(type, name, Slots.CREATING);
+            try {
+                T t = factory.call();
+                requestInstances.values[i] = t;
+                return t;
+            } catch (Exception e) {
+                requestInstances.remove(i);
+                throw e;
+            } catch (Error e) {
+                requestInstances.remove(i);
+                throw e;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T findInSession(Class<T> type, String name,
+                                   Callable<? extends T> factory) throws Exception {
+            if (session == null) {
+                throw new IllegalStateException("Request has no session.");
+            }
+            int i = sessionInstances.indexOf(type, name);
+            if (i >= 0) {
+                return (T) sessionInstances.values[i];
+            }
+            T t = (T) session.find(type, name, factory);
+            sessionInstances.add(type, name, t);
+            return t;
+        }
+
+        @Override
+        public <T> T findInWizard(Class<T> type, String name,
+                                  Callable<? extends T> factory) throws Exception {
+            if (delegate == null) {
+                throw new IllegalStateException("Request has no strategy for the wizard scope.");
+            }
+            return delegate.findInWizard(type, name, factory);
+        }
+    }
+
+    /**
+     * Instances by type and name in parallel arrays. Requests use few scoped
+     * bindings, so a linear scan beats hashing
+     */
+    static class Slots {
+
+        static final Object CREATING = new Object();
+
+        Class<?>[] types = new Class<?>[4];
+        String[] names = new String[4];
+        Object[] values = new Object[4];
+        int size;
+
+        int indexOf(Class<?> type, String name) {
+            for (int i = 0; i < size; i++) {
+                if (types[i] == type && names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int add(Class<?> type, String name, Object value) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            types[size] = type;
+            names[size] = name;
+            values[size] = value;
+            return size++;
+        }
+
+        void remove(int i) {
+            int moved = size - i - 1;
+            System.arraycopy(types, i + 1, types, i, moved);
+            System.arraycopy(names, i + 1, names, i, moved);
+            System.arraycopy(values, i + 1, values, i, moved);
+            size--;
+            types[size] = null;
+            names[size] = null;
+            values[size] = null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * Snapshot of a {@link ScopeStore}'s counters
+ * @see ScopeStore#getStats()
+ */
+public final class ScopeStoreStats {
+
+    final int sessions;
+    final long requests;
+    final long sessionHits;
+    final long sessionMisses;
+    final long expired;
+    final long evicted;
+
+    ScopeStoreStats(int sessions, long requests, long sessionHits, long sessionMisses,
+                    long expired, long evicted) {
+        this.sessions = sessions;
+        this.requests = requests;
+        this.sessionHits = sessionHits;
+        this.sessionMisses = sessionMisses;
+        this.expired = expired;
+        this.evicted = evicted;
+    }
+
+    /**
+     * Number of sessions currently kept
+     */
+    public int getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Number of requests opened
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Number of session instances found already created. Doesn't count
+     * lookups a request answered from its own memory of the session
+     */
+    public long getSessionHits() {
+        return sessionHits;
+    }
+
+    /**
+     * Number of session instances created
+     */
+    public long getSessionMisses() {
+        return sessionMisses;
+    }
+
+    /**
+     * Number of sessions released because they were idle too long
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    /**
+     * Number of sessions released to stay within the maximum number of sessions
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    @Override
+    public String toString() {
+        return "ScopeStoreStats[sessions=" + sessions + ", requests=" + requests
+                + ", sessionHits=" + sessionHits + ", sessionMisses=" + sessionMisses
+                + ", expired=" + expired + ", evicted=" + evicted + "]";
+    }
+}
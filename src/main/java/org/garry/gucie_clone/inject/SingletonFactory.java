@@ -0,0 +1,101 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Creates one instance per container. Once the instance is published, lookups
+ * are a single volatile read. Creation is guarded by a lock per binding instead
+ * of the container's monitor, so threads creating unrelated singletons don't
+ * contend, and waiting threads park instead of pinning their carrier.
+ *
+ * If two threads create singletons which depend on each other, one of them fails
+ * with a {@link DependencyException} instead of deadlocking
+ * @param <T>
+ */
+class SingletonFactory<T> implements InternalFactory<T> {
+
+    /**
+     * Singletons which threads are currently blocked on. Used to detect
+     * circular initialization across threads
+     */
+    static final ConcurrentMap<Thread, SingletonFactory<?>> blocked =
+            new ConcurrentHashMap<>();
+
+    final InternalFactory<? extends T> factory;
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    volatile T instance;
+
+    /**
+     * Thread currently creating the instance
+     */
+    volatile Thread creator;
+
+    SingletonFactory(InternalFactory<? extends T> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public T create(InternalContext context) {
+        T t = instance;
+        return t != null ? t : createOnce(context);
+    }
+
+    T createOnce(InternalContext context) {
+        Thread current = Thread.currentThread();
+        if (!lock.tryLock()) {
+            blocked.put(current, this);
+            try {
+                checkForCycle(current);
+                lock.lock();
+            }finally {
+                blocked.remove(current);
+            }
+        }
+
+        Thread previous = creator;
+        creator = current;
+        try {
+            T t = instance;
+            if (t == null){
+                t = factory.create(context);
+                // if we're re-entering this singleton, t may be a circular
+                // dependency proxy. Only the outermost creation publishes.
+                if (lock.getHoldCount() == 1){
+                    instance = t;
+                }
+            }
+            return t;
+        }finally {
+            creator = previous;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Follows the chain of threads creating singletons and the singletons they
+     * are blocked on. Throws if it leads back to the current thread
+     */
+    void checkForCycle(Thread current) {
+        SingletonFactory<?> singleton = this;
+        for (int i = 0; singleton != null && i <= blocked.size(); i++){
+            Thread owner = singleton.creator;
+            if (owner == null){
+                return;
+            }
+            if (owner == current){
+                throw new DependencyException("Circular dependency between singletons "
+                        + "created on different threads, involving " + this + ".");
+            }
+            singleton = blocked.get(owner);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return factory.toString();
+    }
+}
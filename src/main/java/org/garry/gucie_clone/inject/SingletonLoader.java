@@ -0,0 +1,276 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads singletons concurrently in dependency order. Builds the graph of
+ * dependencies between singletons from their injection points, groups
+ * singletons which depend on each other, and loads each group once the groups
+ * it depends on are loaded
+ */
+class SingletonLoader {
+
+    final ContainerImpl container;
+
+    /**
+     * Singleton keys to the factories which load them, in binding order
+     */
+    final Map<Key<?>, InternalFactory<?>> singletons;
+
+    final Executor executor;
+
+    final Map<Key<?>, Throwable> failures = new ConcurrentHashMap<>();
+
+    SingletonLoader(ContainerImpl container, Map<Key<?>, InternalFactory<?>> singletons,
+                    Executor executor) {
+        this.container = container;
+        this.singletons = singletons;
+        this.executor = executor;
+    }
+
+    void load() {
+        Map<Key<?>, Set<Key<?>>> graph = new HashMap<>();
+        for (Key<?> key : singletons.keySet()) {
+            graph.put(key, singletonDependencies(key));
+        }
+
+        final Map<Key<?>, Integer> bindingOrder = new HashMap<>();
+        for (Key<?> key : singletons.keySet()) {
+            bindingOrder.put(key, bindingOrder.size());
+        }
+        Comparator<Key<?>> byBindingOrder = new Comparator<Key<?>>() {
+            @Override
+            public int compare(Key<?> a, Key<?> b) {
+                return Integer.compare(bindingOrder.get(a), bindingOrder.get(b));
+            }
+        };
+
+        // components come out dependencies first
+        Map<Key<?>, CompletableFuture<Void>> futures = new HashMap<>();
+        List<CompletableFuture<Void>> all = new ArrayList<>();
+        for (final List<Key<?>> component : new Components(graph).find()) {
+            Collections.sort(component, byBindingOrder);
+            List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+            for (Key<?> key : component) {
+                for (Key<?> dependency : graph.get(key)) {
+                    CompletableFuture<Void> future = futures.get(dependency);
+                    if (future != null) {
+                        dependencies.add(future);
+                    }
+                }
+            }
+
+            CompletableFuture<Void> future = CompletableFuture
+                    .allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+                    .thenRunAsync(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadComponent(component);
+                        }
+                    }, executor);
+            for (Key<?> key : component) {
+                futures.put(key, future);
+            }
+            all.add(future);
+        }
+
+        try {
+            CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()])).join();
+        } catch (CompletionException e) {
+            reportFailures();
+            // no singleton failed, i.e. the executor rejected a component
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        } catch (CancellationException e) {
+            reportFailures();
+            throw e;
+        }
+    }
+
+    /**
+     * Loads singletons which depend on each other on the current thread
+     */
+    void loadComponent(final List<Key<?>> component) {
+        container.callInContext(new ContainerImpl.ContextualCallable<Void>() {
+            @Override
+            public Void call(InternalContext context) {
+                for (Key<?> key : component) {
+                    try {
+                        singletons.get(key).create(context);
+                    } catch (RuntimeException e) {
+                        failures.put(key, e);
+                        throw e;
+                    } catch (Error e) {
+                        failures.put(key, e);
+                        throw e;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Throws the failure of the first singleton in binding order
+     */
+    void reportFailures() {
+        Throwable first = null;
+        for (Key<?> key : singletons.keySet()) {
+            Throwable failure = failures.get(key);
+            if (failure == null) {
+                continue;
+            }
+            if (first == null) {
+                first = failure;
+            } else if (failure != first) {
+                first.addSuppressed(failure);
+            }
+        }
+
+        if (first instanceof RuntimeException) {
+            throw (RuntimeException) first;
+        }
+        if (first instanceof Error) {
+            throw (Error) first;
+        }
+    }
+
+    /**
+     * Gets the singletons the given singleton depends on, following
+     * dependencies through non-singleton bindings created by the container
+     */
+    Set<Key<?>> singletonDependencies(Key<?> singleton) {
+        Set<Key<?>> dependencies = new LinkedHashSet<>();
+        Set<Key<?>> visited = new HashSet<>();
+        Deque<Key<?>> pending = new ArrayDeque<>();
+        pending.add(singleton);
+        visited.add(singleton);
+        while (!pending.isEmpty()) {
+            for (Key<?> dependency : directDependencies(pending.remove())) {
+                if (!visited.add(dependency)) {
+                    continue;
+                }
+                if (singletons.containsKey(dependency)) {
+                    dependencies.add(dependency);
+                } else {
+                    pending.add(dependency);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    Set<Key<?>> directDependencies(Key<?> key) {
+        Class<?> implementation = container.implementations.get(key);
+        if (implementation == null) {
+            // constants and factories don't declare dependencies
+            return Collections.emptySet();
+        }
+        try {
+            return container.getDependencies(implementation);
+        } catch (RuntimeException e) {
+            // fails again when the singleton loads
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Finds strongly connected components using Tarjan's algorithm. Components
+     * come out after the components they depend on
+     */
+    static class Components {
+
+        final Map<Key<?>, Set<Key<?>>> graph;
+        final Map<Key<?>, Integer> index = new HashMap<>();
+        final Map<Key<?>, Integer> lowLink = new HashMap<>();
+        final Deque<Key<?>> stack = new ArrayDeque<>();
+        final Set<Key<?>> onStack = new HashSet<>();
+        final List<List<Key<?>>> components = new ArrayList<>();
+
+        Components(Map<Key<?>, Set<Key<?>>> graph) {
+            this.graph = graph;
+        }
+
+        List<List<Key<?>>> find() {
+            for (Key<?> key : graph.keySet()) {
+                if (!index.containsKey(key)) {
+                    visit(key);
+                }
+            }
+            return components;
+        }
+
+        /**
+         * Visits the singletons reachable from the given one. Keeps the path
+         * on an explicit stack, so long chains of dependencies don't overflow
+         * the thread's stack
+         */
+        void visit(Key<?> root) {
+            Deque<Frame> path = new ArrayDeque<>();
+            path.push(open(root));
+            while (!path.isEmpty()) {
+                Frame frame = path.peek();
+                if (frame.dependencies.hasNext()) {
+                    Key<?> dependency = frame.dependencies.next();
+                    if (!index.containsKey(dependency)) {
+                        path.push(open(dependency));
+                    } else if (onStack.contains(dependency)) {
+                        lowLink.put(frame.key,
+                                Math.min(lowLink.get(frame.key), index.get(dependency)));
+                    }
+                    continue;
+                }
+
+                path.pop();
+                Key<?> key = frame.key;
+                if (lowLink.get(key).equals(index.get(key))) {
+                    List<Key<?>> component = new ArrayList<>();
+                    Key<?> member;
+                    do {
+                        member = stack.pop();
+                        onStack.remove(member);
+                        component.add(member);
+                    } while (member != key);
+                    components.add(component);
+                }
+                Frame parent = path.peek();
+                if (parent != null) {
+                    lowLink.put(parent.key, Math.min(lowLink.get(parent.key), lowLink.get(key)));
+                }
+            }
+        }
+
+        Frame open(Key<?> key) {
+            index.put(key, index.size());
+            lowLink.put(key, index.get(key));
+            stack.push(key);
+            onStack.add(key);
+            return new Frame(key, graph.get(key).iterator());
+        }
+
+        /**
+         * A singleton on the search path and the dependencies left to visit
+         */
+        static class Frame {
+
+            final Key<?> key;
+            final Iterator<Key<?>> dependencies;
+
+            Frame(Key<?> key, Iterator<Key<?>> dependencies) {
+                this.key = key;
+                this.dependencies = dependencies;
+            }
+        }
+    }
+}
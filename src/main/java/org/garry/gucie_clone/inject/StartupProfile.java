@@ -0,0 +1,185 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timeline of a container's creation, recorded when enabled with
+ * {@link ContainerBuilder#profileStartup()}. Each thread which took part has
+ * a tree of spans: constructions of bindings split into the constructor and
+ * the field and method injectors, reflective scanning of classes, and static
+ * injections. Spans include the time of the spans nested in them
+ * @see ContainerBuilder#getStartupProfile()
+ */
+public final class StartupProfile {
+
+    final long origin;
+
+    /**
+     * Root spans by thread name, in order of first appearance
+     */
+    final Map<String, List<Span>> threads;
+
+    StartupProfile(long origin, List<Span> roots) {
+        this.origin = origin;
+        this.threads = new LinkedHashMap<>();
+        for (Span root : roots) {
+            List<Span> spans = threads.get(root.thread);
+            if (spans == null) {
+                spans = new ArrayList<>();
+                threads.put(root.thread, spans);
+            }
+            spans.add(root);
+        }
+    }
+
+    /**
+     * Exports the timeline as JSON. Times are in nanoseconds, starts relative
+     * to the start of profiling
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"threads\":[");
+        boolean first = true;
+        for (Map.Entry<String, List<Span>> thread : threads.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"name\":");
+            quote(json, thread.getKey());
+            json.append(",\"spans\":");
+            appendJson(json, thread.getValue());
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    void appendJson(StringBuilder json, List<Span> spans) {
+        json.append('[');
+        for (int i = 0; i < spans.size(); i++) {
+            Span span = spans.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"kind\":");
+            quote(json, span.kind);
+            if (span.name != null) {
+                json.append(",\"name\":");
+                quote(json, span.name);
+            }
+            if (span.binding != null) {
+                json.append(",\"binding\":");
+                quote(json, span.binding);
+            }
+            if (span.injectionPoint != null) {
+                json.append(",\"injectionPoint\":");
+                quote(json, span.injectionPoint);
+            }
+            json.append(",\"startNanos\":").append(span.start - origin)
+                    .append(",\"durationNanos\":").append(span.duration())
+                    .append(",\"selfNanos\":").append(span.selfDuration())
+                    .append(",\"children\":");
+            appendJson(json, span.children);
+            json.append('}');
+        }
+        json.append(']');
+    }
+
+    static void quote(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Exports the timeline as folded stacks for flame graph tools, i.e.
+     * {@code flamegraph.pl}. Each line is a stack of frames separated by
+     * semicolons, rooted at the thread, followed by the self time of its last
+     * frame in nanoseconds
+     */
+    public String toFlameGraph() {
+        StringBuilder folded = new StringBuilder();
+        for (Map.Entry<String, List<Span>> thread : threads.entrySet()) {
+            for (Span span : thread.getValue()) {
+                appendFolded(folded, thread.getKey().replace(';', '_'), span);
+            }
+        }
+        return folded.toString();
+    }
+
+    void appendFolded(StringBuilder folded, String stack, Span span) {
+        stack = stack + ';' + span.frame();
+        long self = span.selfDuration();
+        if (self > 0) {
+            folded.append(stack).append(' ').append(self).append('\n');
+        }
+        for (Span child : span.children) {
+            appendFolded(folded, stack, child);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toFlameGraph();
+    }
+
+    /**
+     * A timed step of the container's creation. Only its thread adds children
+     */
+    static final class Span {
+
+        static final String CONSTRUCT = "construct";
+        static final String CONSTRUCTOR = "constructor";
+        static final String INJECTORS = "injectors";
+        static final String SCAN = "scan";
+        static final String STATICS = "statics";
+
+        final String kind;
+        final String name;
+        final String binding;
+        final String injectionPoint;
+        final String thread;
+        final Span parent;
+        final List<Span> children = new ArrayList<>();
+        final long start;
+        long end;
+
+        Span(String kind, String name, String binding, String injectionPoint,
+             Span parent) {
+            this.kind = kind;
+            this.name = name;
+            this.binding = binding;
+            this.injectionPoint = injectionPoint;
+            this.thread = Thread.currentThread().getName();
+            this.parent = parent;
+            this.start = System.nanoTime();
+        }
+
+        long duration() {
+            return end - start;
+        }
+
+        long selfDuration() {
+            long self = duration();
+            for (Span child : children) {
+                self -= child.duration();
+            }
+            return Math.max(0, self);
+        }
+
+        String frame() {
+            return (name == null ? kind : kind + ' ' + name).replace(';', '_');
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.garry.gucie_clone.inject;
+
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records the spans of a container's creation on every thread taking part
+ */
+final class StartupProfiler {
+
+    final long origin = System.nanoTime();
+
+    final ThreadLocal<StartupProfile.Span> current = new ThreadLocal<>();
+
+    final ConcurrentLinkedQueue<StartupProfile.Span> roots = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Starts a span nested in the current thread's open span
+     */
+    StartupProfile.Span enter(String kind, String name) {
+        return enter(kind, name, null, null);
+    }
+
+    StartupProfile.Span enter(String kind, String name, Key<?> binding, Member injectionPoint) {
+        StartupProfile.Span parent = current.get();
+        StartupProfile.Span span = new StartupProfile.Span(kind, name,
+                binding == null ? null : binding.toString(),
+                injectionPoint == null ? null : injectionPoint.toString(), parent);
+        if (parent == null) {
+            roots.add(span);
+        } else {
+            parent.children.add(span);
+        }
+        current.set(span);
+        return span;
+    }
+
+    void exit(StartupProfile.Span span) {
+        span.end = System.nanoTime();
+        if (span.parent == null) {
+            current.remove();
+        } else {
+            current.set(span.parent);
+        }
+    }
+
+    StartupProfile finish() {
+        List<StartupProfile.Span> spans = new ArrayList<>(roots);
+        return new StartupProfile(origin, spans);
+    }
+}
@@ -0,0 +1,128 @@
+package org.garry.gucie_clone.inject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instances in {@link Scope#THREAD}, and in {@link Scope#PLATFORM_THREAD} on
+ * platform threads, owned by the container rather than by
+ * thread locals. Nothing outlives the container, and instances of one thread
+ * can be purged from any thread. Keeps the most recently used instances of
+ * each thread, up to a limit
+ */
+class ThreadScope {
+
+    final int maxInstancesPerThread;
+
+    final Map<Thread, Store> stores = new ConcurrentHashMap<>();
+
+    /**
+     * Number of stores at which creating another one sweeps dead threads first
+     */
+    volatile int sweepThreshold = MIN_SWEEP_THRESHOLD;
+
+    static final int MIN_SWEEP_THRESHOLD = 64;
+
+    final AtomicLong created = new AtomicLong();
+    final AtomicLong evicted = new AtomicLong();
+
+    ThreadScope(int maxInstancesPerThread) {
+        this.maxInstancesPerThread = maxInstancesPerThread;
+    }
+
+    /**
+     * Finds the current thread's instance for the given scoped factory. Creates
+     * one if necessary
+     */
+    @SuppressWarnings("unchecked")
+    <T> T find(Object scopedFactory, InternalFactory<? extends T> factory,
+               InternalContext context) {
+        Thread thread = Thread.currentThread();
+        Store store = stores.get(thread);
+        if (store == null) {
+            store = newStore(thread);
+        }
+
+        T t;
+        synchronized (store) {
+            t = (T) store.get(scopedFactory);
+        }
+        if (t == null) {
+            // create outside the lock, a purge shouldn't wait on construction
+            t = factory.create(context);
+            created.incrementAndGet();
+            synchronized (store) {
+                store.put(scopedFactory, t);
+            }
+        }
+        return t;
+    }
+
+    Store newStore(Thread thread) {
+        if (stores.size() >= sweepThreshold) {
+            sweep();
+            sweepThreshold = Math.max(MIN_SWEEP_THRESHOLD, stores.size() * 2);
+        }
+        Store store = new Store();
+        stores.put(thread, store);
+        return store;
+    }
+
+    /**
+     * Removes the instances of the given thread
+     */
+    void purge(Thread thread) {
+        stores.remove(thread);
+    }
+
+    /**
+     * Removes the instances of threads which have terminated
+     * @return number of threads removed
+     */
+    int sweep() {
+        int swept = 0;
+        for (Iterator<Thread> i = stores.keySet().iterator(); i.hasNext(); ) {
+            if (!i.next().isAlive()) {
+                i.remove();
+                swept++;
+            }
+        }
+        return swept;
+    }
+
+    ThreadScopeStats stats() {
+        int threads = 0;
+        int instances = 0;
+        for (Store store : stores.values()) {
+            threads++;
+            synchronized (store) {
+                instances += store.size();
+            }
+        }
+        return new ThreadScopeStats(threads, instances, created.get(), evicted.get());
+    }
+
+    /**
+     * Instances of one thread by scoped factory, in access order
+     */
+    class Store extends LinkedHashMap<Object, Object> {
+
+        private static final long serialVersionUID = 0;
+
+        Store() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            if (size() > maxInstancesPerThread) {
+                evicted.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
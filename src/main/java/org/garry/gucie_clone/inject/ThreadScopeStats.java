@@ -0,0 +1,54 @@
+package org.garry.gucie_clone.inject;
+
+/**
+ * Snapshot of a container's {@link Scope#THREAD} instances
+ * @see Container#getThreadScopeStats()
+ */
+public final class ThreadScopeStats {
+
+    final int threads;
+    final int instances;
+    final long created;
+    final long evicted;
+
+    ThreadScopeStats(int threads, int instances, long created, long evicted) {
+        this.threads = threads;
+        this.instances = instances;
+        this.created = created;
+        this.evicted = evicted;
+    }
+
+    /**
+     * Number of threads holding instances, including dead threads not swept yet
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Number of instances held across all threads
+     */
+    public int getInstances() {
+        return instances;
+    }
+
+    /**
+     * Number of instances created since the container was created
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Number of instances evicted because their thread reached its limit
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadScopeStats[threads=" + threads + ", instances=" + instances
+                + ", created=" + created + ", evicted=" + evicted + "]";
+    }
+}
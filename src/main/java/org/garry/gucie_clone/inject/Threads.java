@@ -0,0 +1,41 @@
+package org.garry.gucie_clone.inject;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Thread utilities which work whether or not the running JDK has virtual threads
+ */
+class Threads {
+
+    /**
+     * {@code Thread.isVirtual()}, or null on JDKs without virtual threads
+     */
+    static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the given thread is a virtual thread
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package org.garry.gucie_clone.inject.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enforces a {@link CachePolicy} on a {@link ReferenceCache}. The cache's map
+ * holds a {@link Node} per entry. Nodes are linked in access order lists and
+ * a write order list, which only the thread holding the eviction lock changes.
+ *
+ * <p>Reads record their node in striped ring buffers, dropping it when the
+ * buffer is full, and writes queue their nodes. Whoever fills a buffer or
+ * writes then tries the eviction lock and, if it gets it, replays the buffers
+ * on the lists, expires and evicts entries. Readers never wait for the lock
+ */
+final class BoundedPolicy<K, V> {
+
+    private static final Logger logger = Logger.getLogger(BoundedPolicy.class.getName());
+
+    static final int NONE = 0;
+    static final int WINDOW = 1;
+    static final int MAIN = 2;
+
+    static final int READ_BUFFER_STRIPES = Math.min(16,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+    static final int READ_BUFFER_SIZE = 32;
+
+    final ReferenceCache<K, V> cache;
+    final CachePolicy.Weigher<? super K, ? super V> weigher;
+    final CachePolicy.Ticker ticker;
+    final Executor executor;
+    final long maximum;
+    final long expireAfterAccessNanos;
+    final long expireAfterWriteNanos;
+    final long refreshAfterWriteNanos;
+
+    /**
+     * Null unless evicting with {@link CachePolicy.Eviction#TINY_LFU}
+     */
+    final FrequencySketch sketch;
+    final long windowMaximum;
+
+    final ReentrantLock evictionLock = new ReentrantLock();
+
+    final ConcurrentLinkedQueue<Node<V>> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    final AtomicReferenceArray<Node<V>> readBuffer =
+            new AtomicReferenceArray<>(READ_BUFFER_STRIPES * READ_BUFFER_SIZE);
+    final AtomicLongArray readBufferTails = new AtomicLongArray(READ_BUFFER_STRIPES);
+    final AtomicLongArray readBufferHeads = new AtomicLongArray(READ_BUFFER_STRIPES);
+
+    // guarded by evictionLock
+    final Node<V> window = Node.sentinel();
+    final Node<V> main = Node.sentinel();
+    final Node<V> writeOrder = Node.sentinel();
+    long windowWeight;
+    long weightedSize;
+
+    BoundedPolicy(ReferenceCache<K, V> cache, CachePolicy<? super K, ? super V> policy) {
+        this.cache = cache;
+        if (policy.maximumWeight != CachePolicy.UNSET) {
+            this.maximum = policy.maximumWeight;
+            this.weigher = policy.weigher;
+        } else {
+            this.maximum = policy.maximumSize;
+            this.weigher = CachePolicy.SINGLETON_WEIGHER;
+        }
+        this.ticker = policy.ticker;
+        this.executor = policy.executor;
+        this.expireAfterAccessNanos = policy.expireAfterAccessNanos;
+        this.expireAfterWriteNanos = policy.expireAfterWriteNanos;
+        this.refreshAfterWriteNanos = policy.refreshAfterWriteNanos;
+
+        if (maximum != CachePolicy.UNSET && policy.eviction == CachePolicy.Eviction.TINY_LFU) {
+            this.sketch = new FrequencySketch(policy.maximumSize != CachePolicy.UNSET
+                    ? maximum : 1 << 16);
+            this.windowMaximum = Math.max(1, maximum / 100);
+        } else {
+            this.sketch = null;
+            this.windowMaximum = 0;
+        }
+    }
+
+    boolean isTimed() {
+        return expireAfterAccessNanos != CachePolicy.UNSET
+                || expireAfterWriteNanos != CachePolicy.UNSET
+                || refreshAfterWriteNanos != CachePolicy.UNSET;
+    }
+
+    boolean isExpired(Node<V> node, long now) {
+        return (expireAfterWriteNanos != CachePolicy.UNSET
+                    && now - node.writeTime >= expireAfterWriteNanos)
+                || (expireAfterAccessNanos != CachePolicy.UNSET
+                    && now - node.accessTime >= expireAfterAccessNanos);
+    }
+
+    @SuppressWarnings("unchecked")
+    Node<V> newNode(Object key, V value) {
+        int weight = weigher.weigh((K) key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight of " + key + " is negative.");
+        }
+        return new Node<V>(key, value, weight, isTimed() ? ticker.read() : 0);
+    }
+
+    /**
+     * Gets the value of an entry which hasn't expired, and records the read
+     */
+    @SuppressWarnings("unchecked")
+    V getIfPresent(Object key) {
+        Node<V> node = (Node<V>) cache.delegate.get(key);
+        if (node == null) {
+            return null;
+        }
+        long now = isTimed() ? ticker.read() : 0;
+        if (isExpired(node, now)) {
+            drain();
+            return null;
+        }
+        if (expireAfterAccessNanos != CachePolicy.UNSET) {
+            node.accessTime = now;
+        }
+        recordRead(node);
+        refreshIfNeeded(node, now);
+        return node.value;
+    }
+
+    /**
+     * Gets the value of a node, or null if it has expired
+     */
+    V valueOf(Node<V> node) {
+        return isTimed() && isExpired(node, ticker.read()) ? null : node.value;
+    }
+
+    void recordRead(Node<V> node) {
+        int stripe = (int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1);
+        long tail = readBufferTails.get(stripe);
+        long size = tail - readBufferHeads.get(stripe);
+        if (size < READ_BUFFER_SIZE && readBufferTails.compareAndSet(stripe, tail, tail + 1)) {
+            readBuffer.lazySet(stripe * READ_BUFFER_SIZE
+                    + (int) (tail & (READ_BUFFER_SIZE - 1)), node);
+            size++;
+        }
+        if (size >= READ_BUFFER_SIZE / 2) {
+            drain();
+        }
+    }
+
+    /**
+     * Queues the nodes a write added and removed
+     */
+    void afterWrite(Node<V> added, Node<V> removed) {
+        if (added != null) {
+            writeBuffer.add(added);
+        }
+        if (removed != null && removed != added) {
+            writeBuffer.add(removed);
+        }
+        drain();
+    }
+
+    @SuppressWarnings("unchecked")
+    void refreshIfNeeded(final Node<V> node, long now) {
+        if (refreshAfterWriteNanos == CachePolicy.UNSET
+                || now - node.writeTime < refreshAfterWriteNanos
+                || !Node.REFRESHING.compareAndSet(node, 0, 1)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        V value = cache.create((K) node.key);
+                        if (value == null) {
+                            throw new NullPointerException(
+                                    "create(K) returned null for: " + node.key);
+                        }
+                        Node<V> refreshed = newNode(node.key, value);
+                        if (cache.delegate.replace(node.key, node, refreshed)) {
+                            afterWrite(refreshed, node);
+                        }
+                    } catch (Throwable t) {
+                        logger.log(Level.WARNING, "Error refreshing " + node.key + ".", t);
+                        node.refreshing = 0;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            node.refreshing = 0;
+        }
+    }
+
+    /**
+     * Runs maintenance unless another thread is
+     */
+    void drain() {
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            // a writer may have queued a node after the lock holder had drained
+        } while (!writeBuffer.isEmpty());
+    }
+
+    /**
+     * Runs maintenance, waiting for the lock
+     */
+    void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    void maintenance() {
+        drainReadBuffers();
+        Node<V> node;
+        while ((node = writeBuffer.poll()) != null) {
+            reconcile(node);
+        }
+        if (isTimed()) {
+            expire(ticker.read());
+        }
+        evict();
+    }
+
+    void drainReadBuffers() {
+        for (int stripe = 0; stripe < READ_BUFFER_STRIPES; stripe++) {
+            long head = readBufferHeads.get(stripe);
+            long tail = readBufferTails.get(stripe);
+            for (; head < tail; head++) {
+                int index = stripe * READ_BUFFER_SIZE + (int) (head & (READ_BUFFER_SIZE - 1));
+                Node<V> node = readBuffer.get(index);
+                if (node == null) {
+                    // claimed but not written yet
+                    break;
+                }
+                readBuffer.lazySet(index, null);
+                onAccess(node);
+            }
+            readBufferHeads.lazySet(stripe, head);
+        }
+    }
+
+    void onAccess(Node<V> node) {
+        if (sketch != null) {
+            sketch.increment(node.keyHash);
+        }
+        if (node.queue != NONE) {
+            unlink(node);
+            linkLast(node.queue == WINDOW ? window : main, node);
+        }
+    }
+
+    /**
+     * Links a node still in the map, and unlinks a node no longer in the map.
+     * Nodes are put into the map once, so a node found missing stays missing
+     */
+    void reconcile(Node<V> node) {
+        boolean mapped = cache.delegate.get(node.key) == node;
+        if (mapped && node.queue == NONE) {
+            if (sketch != null) {
+                sketch.increment(node.keyHash);
+                node.queue = WINDOW;
+                windowWeight += node.weight;
+                linkLast(window, node);
+            } else {
+                node.queue = MAIN;
+                linkLast(main, node);
+            }
+            weightedSize += node.weight;
+            node.writePrev = writeOrder.writePrev;
+            node.writeNext = writeOrder;
+            writeOrder.writePrev.writeNext = node;
+            writeOrder.writePrev = node;
+        } else if (!mapped && node.queue != NONE) {
+            remove(node);
+        }
+    }
+
+    void expire(long now) {
+        if (expireAfterAccessNanos != CachePolicy.UNSET) {
+            expire(window, now);
+            expire(main, now);
+        }
+        if (expireAfterWriteNanos != CachePolicy.UNSET) {
+            Node<V> node = writeOrder.writeNext;
+            while (node != writeOrder && now - node.writeTime >= expireAfterWriteNanos) {
+                Node<V> next = node.writeNext;
+                evict(node);
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * Expires the least recently used nodes of an access order list
+     */
+    void expire(Node<V> list, long now) {
+        Node<V> node = list.next;
+        while (node != list && now - node.accessTime >= expireAfterAccessNanos) {
+            Node<V> next = node.next;
+            evict(node);
+            node = next;
+        }
+    }
+
+    /**
+     * Moves nodes beyond the window's maximum to the main list, then evicts
+     * until the cache is within its maximum. A node leaving the window is
+     * admitted only if its key is used more often than the main list's least
+     * recently used key
+     */
+    void evict() {
+        if (maximum == CachePolicy.UNSET) {
+            return;
+        }
+
+        Node<V> candidate = null;
+        while (windowWeight > windowMaximum) {
+            Node<V> node = window.next;
+            unlink(node);
+            windowWeight -= node.weight;
+            node.queue = MAIN;
+            linkLast(main, node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (weightedSize > maximum) {
+            Node<V> victim = main.next;
+            if (victim == main) {
+                // only the window is left
+                if (window.next == window) {
+                    break;
+                }
+                evict(window.next);
+            } else if (candidate == null) {
+                evict(victim);
+            } else if (candidate == victim
+                    || sketch.frequency(candidate.keyHash) > sketch.frequency(victim.keyHash)) {
+                if (candidate == victim) {
+                    candidate = next(candidate);
+                }
+                evict(victim);
+            } else {
+                Node<V> next = next(candidate);
+                evict(candidate);
+                candidate = next;
+            }
+        }
+    }
+
+    Node<V> next(Node<V> candidate) {
+        return candidate.next == main ? null : candidate.next;
+    }
+
+    /**
+     * Removes a node from the map and the lists
+     */
+    void evict(Node<V> node) {
+        cache.delegate.remove(node.key, node);
+        remove(node);
+    }
+
+    void remove(Node<V> node) {
+        unlink(node);
+        if (node.queue == WINDOW) {
+            windowWeight -= node.weight;
+        }
+        node.queue = NONE;
+        weightedSize -= node.weight;
+        node.writePrev.writeNext = node.writeNext;
+        node.writeNext.writePrev = node.writePrev;
+        node.writePrev = null;
+        node.writeNext = null;
+    }
+
+    /**
+     * Removes all nodes no longer in the map
+     */
+    void clear() {
+        evictionLock.lock();
+        try {
+            maintenance();
+            Node<V> node = writeOrder.writeNext;
+            while (node != writeOrder) {
+                Node<V> next = node.writeNext;
+                if (cache.delegate.get(node.key) != node) {
+                    remove(node);
+                }
+                node = next;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    static <V> void linkLast(Node<V> list, Node<V> node) {
+        node.prev = list.prev;
+        node.next = list;
+        list.prev.next = node;
+        list.prev = node;
+    }
+
+    static <V> void unlink(Node<V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    /**
+     * Entry of a bounded cache. Immutable but for its links and access time,
+     * writes replace the node
+     */
+    static final class Node<V> {
+
+        @SuppressWarnings("rawtypes")
+        static final AtomicIntegerFieldUpdater<Node> REFRESHING =
+                AtomicIntegerFieldUpdater.newUpdater(Node.class, "refreshing");
+
+        final Object key;
+        final V value;
+        final int weight;
+        final int keyHash;
+        final long writeTime;
+        volatile long accessTime;
+        volatile int refreshing;
+
+        // guarded by evictionLock
+        Node<V> prev;
+        Node<V> next;
+        Node<V> writePrev;
+        Node<V> writeNext;
+        int queue;
+
+        Node(Object key, V value, int weight, long now) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.keyHash = key == null ? 0 : key.hashCode();
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+
+        static <V> Node<V> sentinel() {
+            Node<V> sentinel = new Node<V>(null, null, 0, 0);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            sentinel.writePrev = sentinel;
+            sentinel.writeNext = sentinel;
+            return sentinel;
+        }
+    }
+}
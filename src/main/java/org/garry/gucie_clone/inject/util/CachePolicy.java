@@ -0,0 +1,194 @@
+package org.garry.gucie_clone.inject.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds and expiration of a {@link ReferenceCache} with strong keys and
+ * values. Pass to {@link ReferenceCache#ReferenceCache(CachePolicy)}:
+ *
+ * <pre>
+ *     new ReferenceCache&lt;K, V&gt;(new CachePolicy&lt;K, V&gt;()
+ *             .maximumSize(10000)
+ *             .expireAfterAccess(10, TimeUnit.MINUTES)) {
+ *         protected V create(K key) {
+ *             ...
+ *         }
+ *     };
+ * </pre>
+ *
+ * The cache copies the policy when it's created. Entries beyond the maximum
+ * are evicted and expired entries are removed as the cache is used, not at
+ * once, so the cache may briefly exceed its maximum
+ */
+public final class CachePolicy<K, V> {
+
+    /**
+     * How a bounded cache chooses entries to evict
+     */
+    public enum Eviction {
+
+        /**
+         * Evicts the least recently used entry
+         */
+        LRU,
+
+        /**
+         * Admits new entries through a small LRU window. Entries leaving the
+         * window replace the least recently used entry of the rest of the
+         * cache only if their keys have been used more often, as estimated by
+         * a frequency sketch, so one-off scans don't flush frequently used
+         * entries
+         */
+        TINY_LFU
+    }
+
+    /**
+     * Computes the weight of entries, i.e. their size in bytes
+     */
+    public interface Weigher<K, V> {
+
+        /**
+         * @return non negative weight of the entry
+         */
+        int weigh(K key, V value);
+    }
+
+    /**
+     * Source of nanosecond time, for testing
+     */
+    public interface Ticker {
+
+        long read();
+    }
+
+    static final Ticker SYSTEM_TICKER = new Ticker() {
+        @Override
+        public long read() {
+            return System.nanoTime();
+        }
+    };
+
+    static final Weigher<Object, Object> SINGLETON_WEIGHER = new Weigher<Object, Object>() {
+        @Override
+        public int weigh(Object key, Object value) {
+            return 1;
+        }
+    };
+
+    static final long UNSET = -1;
+
+    long maximumSize = UNSET;
+    long maximumWeight = UNSET;
+    Weigher<? super K, ? super V> weigher;
+    Eviction eviction = Eviction.TINY_LFU;
+    long expireAfterAccessNanos = UNSET;
+    long expireAfterWriteNanos = UNSET;
+    long refreshAfterWriteNanos = UNSET;
+    Executor executor = ForkJoinPool.commonPool();
+    Ticker ticker = SYSTEM_TICKER;
+
+    /**
+     * Limits the number of entries
+     * @return this policy
+     */
+    public CachePolicy<K, V> maximumSize(long maximumSize) {
+        if (maximumWeight != UNSET) {
+            throw new IllegalStateException("Maximum weight already set.");
+        }
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative.");
+        }
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    /**
+     * Limits the total weight of entries
+     * @param weigher computes the weight of an entry once, when it's added
+     * @return this policy
+     */
+    public CachePolicy<K, V> maximumWeight(long maximumWeight,
+                                           Weigher<? super K, ? super V> weigher) {
+        if (maximumSize != UNSET) {
+            throw new IllegalStateException("Maximum size already set.");
+        }
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("Maximum weight must not be negative.");
+        }
+        ReferenceMap.ensureNotNull(weigher);
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        return this;
+    }
+
+    /**
+     * Sets how entries are chosen for eviction. Defaults to
+     * {@link Eviction#TINY_LFU}
+     * @return this policy
+     */
+    public CachePolicy<K, V> eviction(Eviction eviction) {
+        ReferenceMap.ensureNotNull(eviction);
+        this.eviction = eviction;
+        return this;
+    }
+
+    /**
+     * Removes entries which haven't been read or written for the given duration
+     * @return this policy
+     */
+    public CachePolicy<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+        this.expireAfterAccessNanos = toNanos(duration, unit);
+        return this;
+    }
+
+    /**
+     * Removes entries the given duration after they were written
+     * @return this policy
+     */
+    public CachePolicy<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+        this.expireAfterWriteNanos = toNanos(duration, unit);
+        return this;
+    }
+
+    /**
+     * Recreates entries with {@link ReferenceCache#create(Object)} on the
+     * executor when they're read the given duration after they were written.
+     * Reads return the current value until the new one replaces it. Failed
+     * refreshes are logged and retried on a later read
+     * @return this policy
+     */
+    public CachePolicy<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+        this.refreshAfterWriteNanos = toNanos(duration, unit);
+        return this;
+    }
+
+    /**
+     * Sets the executor which refreshes entries. Defaults to
+     * {@link ForkJoinPool#commonPool()}
+     * @return this policy
+     */
+    public CachePolicy<K, V> executor(Executor executor) {
+        ReferenceMap.ensureNotNull(executor);
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the time source. Defaults to {@link System#nanoTime()}
+     * @return this policy
+     */
+    public CachePolicy<K, V> ticker(Ticker ticker) {
+        ReferenceMap.ensureNotNull(ticker);
+        this.ticker = ticker;
+        return this;
+    }
+
+    static long toNanos(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Duration must not be negative.");
+        }
+        return unit.toNanos(duration);
+    }
+}
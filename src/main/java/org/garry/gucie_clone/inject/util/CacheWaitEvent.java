@@ -0,0 +1,38 @@
+package org.garry.gucie_clone.inject.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for a thread waiting on another thread creating
+ * the same value in a {@link ReferenceCache}
+ */
+@Name("org.garry.inject.CacheWait")
+@Label("Reference Cache Wait")
+@Category({"Dependency Injection", "Reference Cache"})
+@Description("Wait for another thread creating the same cached value")
+@Threshold("20 ms")
+final class CacheWaitEvent extends jdk.jfr.Event {
+
+    @Label("Cache")
+    Class<?> cache;
+
+    @Label("Key")
+    String key;
+
+    /**
+     * Ends the wait. Records the key as a string, flight recordings can't hold
+     * arbitrary objects
+     */
+    void commit(ReferenceCache<?, ?> cache, Object key) {
+        end();
+        if (shouldCommit()) {
+            this.cache = cache.getClass();
+            this.key = String.valueOf(key);
+            commit();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.garry.gucie_clone.inject.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for cleaning up after a reclaimed referent
+ */
+@Name("org.garry.inject.ReferenceCleanup")
+@Label("Reference Cleanup")
+@Category({"Dependency Injection", "Reference Cache"})
+@Description("Clean up after a reclaimed referent")
+@Threshold("1 ms")
+final class CleanupEvent extends jdk.jfr.Event {
+
+    @Label("Reference Type")
+    Class<?> referenceType;
+
+    @Label("Failed")
+    boolean failed;
+
+    /**
+     * Ends the cleanup, failed if {@link FinalizableReference#finalizeReferent()}
+     * threw
+     */
+    void commit(Object reference, boolean failed) {
+        end();
+        if (shouldCommit()) {
+            this.referenceType = reference.getClass();
+            this.failed = failed;
+            commit();
+        }
+    }
+}
@@ -2,24 +2,63 @@ package org.garry.gucie_clone.inject.util;
 
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Starts a background thread that cleans up after reclaimed referents
+ * Starts a background thread that cleans up after reclaimed referents. The
+ * thread drains the queue in batches for as long as the JVM runs, and cleans
+ * up each batch itself or hands it to the executor set with
+ * {@link ReferenceCleanup#setExecutor(Executor)}
  */
 class FinalizableReferenceQueue extends ReferenceQueue<Object> {
 
     private static final Logger logger =
             Logger.getLogger(FinalizableReferenceQueue.class.getName());
 
+    /**
+     * Maximum number of references cleaned up per batch
+     */
+    static final int BATCH_SIZE = 256;
+
+    volatile Executor executor;
+
+    /**
+     * References dequeued and not cleaned up yet
+     */
+    final AtomicLong pending = new AtomicLong();
+
+    final LongAdder cleaned = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder batches = new LongAdder();
+    final LongAdder expunged = new LongAdder();
+    final LongAdder totalLagNanos = new LongAdder();
+    final AtomicLong maxLagNanos = new AtomicLong();
+
     private FinalizableReferenceQueue(){};
 
     void cleanUp(Reference reference){
+        CleanupEvent event = new CleanupEvent();
+        event.begin();
+        boolean failed = false;
         try {
             ((FinalizableReference)reference).finalizeReferent();
         }catch (Throwable t){
+            failed = true;
             deliverBadNews(t);
+        }finally {
+            event.commit(reference, failed);
+        }
+        if (failed){
+            this.failed.increment();
+        }else {
+            cleaned.increment();
         }
     }
 
@@ -27,22 +66,96 @@ class FinalizableReferenceQueue extends ReferenceQueue<Object> {
         logger.log(Level.SEVERE, "Error cleaning up after reference.", t);
     }
 
+    /**
+     * Cleans up a batch dequeued at the given time
+     */
+    void cleanUp(List<Reference<?>> batch, long dequeued){
+        for (Reference<?> reference : batch){
+            cleanUp(reference);
+            pending.decrementAndGet();
+        }
+        long lag = System.nanoTime() - dequeued;
+        totalLagNanos.add(lag);
+        long max = maxLagNanos.get();
+        while (lag > max && !maxLagNanos.compareAndSet(max, lag)){
+            max = maxLagNanos.get();
+        }
+        batches.increment();
+    }
+
+    /**
+     * Cleans up references in a map's own queue on the accessing thread
+     * @return number of references cleaned up
+     */
+    int expunge(ReferenceQueue<Object> queue){
+        int count = 0;
+        Reference<?> reference;
+        while ((reference = queue.poll()) != null){
+            cleanUp(reference);
+            count++;
+        }
+        if (count > 0){
+            expunged.add(count);
+        }
+        return count;
+    }
+
+    void drain() throws InterruptedException {
+        List<Reference<?>> batch = new ArrayList<>();
+        batch.add(remove());
+        Reference<?> reference;
+        while (batch.size() < BATCH_SIZE && (reference = poll()) != null){
+            batch.add(reference);
+        }
+        pending.addAndGet(batch.size());
+        submit(batch, System.nanoTime());
+    }
+
+    void submit(final List<Reference<?>> batch, final long dequeued){
+        Executor executor = this.executor;
+        if (executor != null){
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        cleanUp(batch, dequeued);
+                    }
+                });
+                return;
+            }catch (RejectedExecutionException e){
+                // clean up on this thread instead
+            }
+        }
+        cleanUp(batch, dequeued);
+    }
+
     void start(){
         Thread thread = new Thread("FinalizableReferenceQueue"){
             @Override
             public void run() {
-               try {
-                   cleanUp(remove());
-               }catch (InterruptedException e){
-
-               }
+                while (true){
+                    try {
+                        drain();
+                    }catch (InterruptedException e){
+                        // keep draining, nothing else cleans up after referents
+                    }catch (Throwable t){
+                        deliverBadNews(t);
+                    }
+                }
             }
         };
         thread.setDaemon(true);
         thread.start();
     }
 
-    static ReferenceQueue<Object> instance = createAndStart();
+    ReferenceCleanupStats stats(){
+        long batches = this.batches.sum();
+        return new ReferenceCleanupStats(pending.get(), cleaned.sum(), failed.sum(),
+                batches, expunged.sum(),
+                batches == 0 ? 0 : totalLagNanos.sum() / batches, maxLagNanos.get());
+    }
+
+    static final FinalizableReferenceQueue instance = createAndStart();
 
     static FinalizableReferenceQueue createAndStart() {
         FinalizableReferenceQueue queue = new FinalizableReferenceQueue();
@@ -1,5 +1,6 @@
 package org.garry.gucie_clone.inject.util;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 
 /**
@@ -13,4 +14,11 @@ public abstract class FinalizableSoftReference<T> extends SoftReference<T> imple
     protected FinalizableSoftReference(T referent){
         super(referent,FinalizableReferenceQueue.getInstance());
     }
+
+    /**
+     * Registers with a queue which the owner of the reference drains itself
+     */
+    FinalizableSoftReference(T referent, ReferenceQueue<Object> queue){
+        super(referent, queue);
+    }
 }
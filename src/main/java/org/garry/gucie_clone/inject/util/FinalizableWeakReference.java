@@ -1,5 +1,6 @@
 package org.garry.gucie_clone.inject.util;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 
 public abstract class FinalizableWeakReference<T> extends WeakReference<T> implements FinalizableReference{
@@ -7,4 +8,11 @@ public abstract class FinalizableWeakReference<T> extends WeakReference<T> imple
     protected FinalizableWeakReference(T referent){
         super(referent, FinalizableReferenceQueue.getInstance());
     }
+
+    /**
+     * Registers with a queue which the owner of the reference drains itself
+     */
+    FinalizableWeakReference(T referent, ReferenceQueue<Object> queue){
+        super(referent, queue);
+    }
 }
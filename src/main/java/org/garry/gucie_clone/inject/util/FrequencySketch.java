@@ -0,0 +1,93 @@
+package org.garry.gucie_clone.inject.util;
+
+/**
+ * Count-min sketch estimating how often keys were used, with four bit
+ * counters. Halves all counters once the number of increments reaches ten
+ * times the width, so estimates favor recent use. Not thread safe, a bounded
+ * cache only uses it while holding its eviction lock
+ */
+final class FrequencySketch {
+
+    static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    static final long RESET_MASK = 0x7777777777777777L;
+    static final long ONE_MASK = 0x1111111111111111L;
+
+    final long[] table;
+    final int mask;
+    final int sampleSize;
+    int size;
+
+    /**
+     * @param expectedKeys number of keys the cache holds
+     */
+    FrequencySketch(long expectedKeys) {
+        int width = (int) Math.min(Math.max(expectedKeys, 16), 1 << 20);
+        width = Integer.highestOneBit(width - 1) << 1;
+        table = new long[width];
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * Estimates how often the key with the given hash code was used, up to 15
+     */
+    int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Increments the given counter of a table element unless it's saturated
+     */
+    boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & mask;
+    }
+
+    static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -1,5 +1,7 @@
 package org.garry.gucie_clone.inject.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.concurrent.*;
 
 /**
@@ -12,14 +14,37 @@ public abstract class ReferenceCache<K, V> extends ReferenceMap<K,V> {
 
     private static final long serialVersionUID = 0;
 
-    transient ConcurrentMap<Object, Future<V>> futures =
-            new ConcurrentHashMap<Object, Future<V>>();
+    /**
+     * Loads in progress by key. Keyed like the map itself, so a thread which
+     * finds another thread's load looks it up by the key alone
+     */
+    transient ConcurrentMap<Object, Object> loadings =
+            keyReferenceType == ReferenceType.STRONG
+                    ? new ConcurrentHashMap<Object, Object>() : new ReferenceKeyTable();
 
-    transient ThreadLocal<Future<V>> localFuture = new ThreadLocal<>();
+    /**
+     * Innermost load running on the current thread
+     */
+    transient ThreadLocal<Loading<V>> currentLoading = new ThreadLocal<>();
+
+    /**
+     * Bounds and expiration, null unless created with a {@link CachePolicy}
+     */
+    final transient BoundedPolicy<K, V> policy;
 
     public ReferenceCache(ReferenceType keyReferenceType,
                           ReferenceType valueReferenceType){
         super(keyReferenceType,valueReferenceType);
+        this.policy = null;
+    }
+
+    /**
+     * @param expungeOnAccess see {@link ReferenceMap#ReferenceMap(ReferenceType, ReferenceType, boolean)}
+     */
+    public ReferenceCache(ReferenceType keyReferenceType,
+                          ReferenceType valueReferenceType, boolean expungeOnAccess){
+        super(keyReferenceType, valueReferenceType, expungeOnAccess);
+        this.policy = null;
     }
 
     /**
@@ -27,48 +52,112 @@ public abstract class ReferenceCache<K, V> extends ReferenceMap<K,V> {
      */
     public ReferenceCache(){
         super(ReferenceType.STRONG, ReferenceType.STRONG);
+        this.policy = null;
+    }
+
+    /**
+     * Creates a cache with strong keys and values, which evicts and expires
+     * entries as the given policy says rather than leaving it to the garbage
+     * collector
+     * @param policy
+     */
+    public ReferenceCache(CachePolicy<? super K, ? super V> policy){
+        super(ReferenceType.STRONG, ReferenceType.STRONG);
+        ensureNotNull(policy);
+        this.policy = new BoundedPolicy<K, V>(this, policy);
     }
 
     /**
      * Override to lazy load values. Use as an alternative to {@link #put(Object, Object)}.
      * Invoked by getter if value isn't already cached.Must not return {@code null}.This
-     * method will not be called again until the garbage collector reclaims the returned value.
+     * method will not be called again until the garbage collector reclaims the returned value,
+     * or the cache's {@link CachePolicy} evicts, expires or refreshes it.
      */
 
     protected abstract V create(K key);
 
+    @SuppressWarnings("unchecked")
     V internalCreate(K key){
-        try {
-            FutureTask<V> futureTask =
-                    new FutureTask<>(new CallableCreate(key));
-
+        Loading<V> current = currentLoading.get();
+        Loading<V> loading = (Loading<V>) loadings.get(key);
+        if (loading == null){
             // use a reference so we get the same equality semantics
             Object keyReference = referenceKey(key);
-            Future<V> future = futures.putIfAbsent(keyReference, futureTask);
-            if (future == null){
-                // winning thread
-                try {
-                    if (localFuture.get() != null){
-                        throw new IllegalStateException(
-                                "Nested creations within the same cache are not allowed.");
-                    }
-                    localFuture.set(futureTask);
-                    futureTask.run();
-                    V value = futureTask.get();
-                    putStrategy().execute(this,
-                            keyReference, referenceValue(keyReference, value));
-                    return value;
-                }finally {
-                    localFuture.remove();
-                    futures.remove(keyReference);
+            Loading<V> created = new Loading<V>(keyReference, current);
+            loading = (Loading<V>) loadings.putIfAbsent(keyReference, created);
+            if (loading == null){
+                return load(created, key);
+            }
+        }
+        return await(loading, current, key);
+    }
+
+    /**
+     * Runs a load this thread won. Loads of other keys may nest within
+     */
+    V load(Loading<V> loading, K key){
+        Loading<V> outer = loading.outer;
+        if (outer != null){
+            outer.inner = loading;
+        }
+        currentLoading.set(loading);
+        try {
+            // try one more time (a previous load could have come and gone)
+            V value = internalGet(key);
+            if (value == null){
+                value = create(key);
+                if (value == null){
+                    throw new NullPointerException(
+                            "create(K) returned null for: " + key);
                 }
+                if (loading.future.isCancelled()){
+                    throw new CancellationException();
+                }
+                Object valueReference = referenceValue(loading.keyReference, value);
+                afterWrite(valueReference,
+                        putStrategy().execute(this, loading.keyReference, valueReference));
+            }
+            loading.future.complete(value);
+            return value;
+        }catch (RuntimeException e){
+            loading.future.completeExceptionally(e);
+            throw e;
+        }catch (Error e){
+            loading.future.completeExceptionally(e);
+            throw e;
+        }finally {
+            loadings.remove(loading.keyReference, loading);
+            if (outer != null){
+                outer.inner = null;
+                currentLoading.set(outer);
             }else {
-                // wait for winning thread
-                return future.get();
+                currentLoading.remove();
             }
-        }catch (InterruptedException e){
-            throw new RuntimeException(e);
-        }catch (ExecutionException e){
+        }
+    }
+
+    /**
+     * Waits for another thread's load. Publishes what this thread waits for
+     * before looking for a cycle, so of two threads closing a cycle at least
+     * one sees the other
+     */
+    V await(Loading<V> loading, Loading<V> current, K key){
+        if (loading.owner == Thread.currentThread()){
+            throw new IllegalStateException("Recursive load of " + key + ".");
+        }
+        if (current != null){
+            current.waitingFor = loading;
+            if (leadsBack(loading)){
+                current.waitingFor = null;
+                throw new IllegalStateException(
+                        "Cycle of loads waiting for each other at " + key + ".");
+            }
+        }
+        CacheWaitEvent event = new CacheWaitEvent();
+        event.begin();
+        try {
+            return loading.future.join();
+        }catch (CompletionException e){
             Throwable cause = e.getCause();
             if (cause instanceof RuntimeException){
                 throw (RuntimeException)cause;
@@ -76,6 +165,54 @@ public abstract class ReferenceCache<K, V> extends ReferenceMap<K,V> {
                 throw (Error)cause;
             }
             throw new RuntimeException(cause);
+        }finally {
+            event.commit(this, key);
+            if (current != null){
+                current.waitingFor = null;
+            }
+        }
+    }
+
+    /**
+     * Follows the loads their owners wait for, starting at the given load,
+     * until a load of the current thread comes up
+     */
+    static boolean leadsBack(Loading<?> loading){
+        Thread thread = Thread.currentThread();
+        for (int i = 0; i < MAX_WAIT_CHAIN && loading != null && !loading.future.isDone(); i++){
+            // the owner runs its innermost load
+            Loading<?> innermost = loading;
+            for (Loading<?> inner = loading.inner; inner != null; inner = inner.inner){
+                innermost = inner;
+            }
+            loading = innermost.waitingFor;
+            if (loading != null && loading.owner == thread){
+                return !loading.future.isDone();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Longest chain of waiting loads followed looking for a cycle
+     */
+    static final int MAX_WAIT_CHAIN = 1 << 10;
+
+    /**
+     * Returns a future of the value for the given key without waiting. Joins a
+     * load already running on another thread, otherwise loads on this thread
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<V> getAsync(K key){
+        ensureNotNull(key);
+        Loading<V> loading = (Loading<V>) loadings.get(key);
+        if (loading != null && loading.owner != Thread.currentThread()){
+            return loading.future;
+        }
+        try {
+            return CompletableFuture.completedFuture(get(key));
+        }catch (RuntimeException e){
+            return CompletableFuture.failedFuture(e);
         }
     }
 
@@ -85,48 +222,114 @@ public abstract class ReferenceCache<K, V> extends ReferenceMap<K,V> {
      * @param key
      * @return
      */
+    @SuppressWarnings("unchecked")
     @Override
     public V get(Object key) {
+        if (policy != null){
+            ensureNotNull(key);
+            V value = policy.getIfPresent(key);
+            return value == null ? internalCreate((K) key) : value;
+        }
         V value = super.get(key);
         return (value == null) ?
                 internalCreate((K)key):
                 value;
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean containsKey(Object key) {
+        if (policy != null){
+            ensureNotNull(key);
+            return internalGet((K) key) != null;
+        }
+        return super.containsKey(key);
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        if (policy != null){
+            policy.clear();
+        }
+    }
+
+    /**
+     * Evicts and expires entries as the cache's policy says. Bounded caches
+     * do so as they're used, call this to catch up, i.e. after a burst of writes
+     */
+    public void cleanUp(){
+        if (policy != null){
+            policy.cleanUp();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    Object referenceValue(Object keyReference, Object value) {
+        return policy == null ? super.referenceValue(keyReference, value)
+                : policy.newNode(keyReference, (V) value);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    V dereferenceValue(Object o) {
+        return policy == null ? super.dereferenceValue(o)
+                : policy.valueOf((BoundedPolicy.Node<V>) o);
+    }
+
+    @Override
+    Collection<V> dereferenceValues(Collection<Object> valueReferences) {
+        if (policy == null){
+            return super.dereferenceValues(valueReferences);
+        }
+        Collection<V> values = new ArrayList<>(valueReferences.size());
+        for (Object valueReference : valueReferences){
+            V value = dereferenceValue(valueReference);
+            if (value != null){
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    void afterWrite(Object added, Object replaced) {
+        if (policy != null){
+            policy.afterWrite((BoundedPolicy.Node<V>) added, (BoundedPolicy.Node<V>) replaced);
+        }
+    }
+
     /**
      * Cancels the current {@link #create(Object)}.Throw {@link java.util.concurrent.CancellationException}
      * to all clients currently blocked on {@link #get(Object)}
      */
     protected void cancel(){
-        Future<V> future = localFuture.get();
-        if (future == null){
+        Loading<V> loading = currentLoading.get();
+        if (loading == null){
             throw new IllegalStateException("Not in create()");
         }
-        future.cancel(false);
+        loading.future.cancel(false);
     }
 
-    class CallableCreate implements Callable<V> {
-
-        K key;
+    /**
+     * A load of one key. Links to the load its owner ran it within, the load
+     * it runs within itself, and the load its owner waits for
+     */
+    static final class Loading<V> {
 
-        public CallableCreate(K key) {
-            this.key = key;
-        }
+        final Object keyReference;
+        final Thread owner = Thread.currentThread();
+        final Loading<V> outer;
+        final CompletableFuture<V> future = new CompletableFuture<V>();
 
-        public V call(){
-            // try one more time (a previous future could have come and gone)
-            V value = internalGet(key);
-            if (value != null){
-                return value;
-            }
+        volatile Loading<V> inner;
+        volatile Loading<V> waitingFor;
 
-            // create value
-            value = create(key);
-            if (value == null){
-                throw new NullPointerException(
-                        "create(K) returned null for: " + key);
-            }
-            return value;
+        Loading(Object keyReference, Loading<V> outer) {
+            this.keyReference = keyReference;
+            this.outer = outer;
         }
     }
 }
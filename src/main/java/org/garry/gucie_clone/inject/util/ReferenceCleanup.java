@@ -0,0 +1,30 @@
+package org.garry.gucie_clone.inject.util;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Controls the cleanup after referents of {@link FinalizableWeakReference}s
+ * and {@link FinalizableSoftReference}s, which removes the stale entries of
+ * {@link ReferenceMap}s. A daemon thread drains reclaimed references in
+ * batches and cleans up each batch, unless an executor is set
+ */
+public final class ReferenceCleanup {
+
+    private ReferenceCleanup() {}
+
+    /**
+     * Sets the executor which cleans up batches of reclaimed references
+     * @param executor runs cleanups, or null to clean up on the draining
+     *  thread. Batches it rejects are cleaned up on the draining thread
+     */
+    public static void setExecutor(Executor executor) {
+        FinalizableReferenceQueue.instance.executor = executor;
+    }
+
+    /**
+     * Gets counters for cleanups since the JVM started
+     */
+    public static ReferenceCleanupStats getStats() {
+        return FinalizableReferenceQueue.instance.stats();
+    }
+}
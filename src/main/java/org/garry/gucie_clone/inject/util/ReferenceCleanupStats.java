@@ -0,0 +1,84 @@
+package org.garry.gucie_clone.inject.util;
+
+/**
+ * Snapshot of the cleanup after reclaimed referents
+ * @see ReferenceCleanup#getStats()
+ */
+public final class ReferenceCleanupStats {
+
+    final long pending;
+    final long cleaned;
+    final long failed;
+    final long batches;
+    final long expunged;
+    final long averageLagNanos;
+    final long maxLagNanos;
+
+    ReferenceCleanupStats(long pending, long cleaned, long failed, long batches,
+                          long expunged, long averageLagNanos, long maxLagNanos) {
+        this.pending = pending;
+        this.cleaned = cleaned;
+        this.failed = failed;
+        this.batches = batches;
+        this.expunged = expunged;
+        this.averageLagNanos = averageLagNanos;
+        this.maxLagNanos = maxLagNanos;
+    }
+
+    /**
+     * Number of reclaimed references drained from the queue and waiting for
+     * their batch to be cleaned up
+     */
+    public long getPending() {
+        return pending;
+    }
+
+    /**
+     * Number of references cleaned up, including those expunged on access
+     */
+    public long getCleaned() {
+        return cleaned;
+    }
+
+    /**
+     * Number of cleanups which threw
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Number of batches cleaned up by the background thread or the executor
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Number of references cleaned up by maps expunging on access
+     */
+    public long getExpunged() {
+        return expunged;
+    }
+
+    /**
+     * Average time between draining a batch and finishing its cleanup
+     */
+    public long getAverageLagNanos() {
+        return averageLagNanos;
+    }
+
+    /**
+     * Longest time between draining a batch and finishing its cleanup
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ReferenceCleanupStats[pending=" + pending + ", cleaned=" + cleaned
+                + ", failed=" + failed + ", batches=" + batches + ", expunged=" + expunged
+                + ", averageLagNanos=" + averageLagNanos + ", maxLagNanos=" + maxLagNanos + "]";
+    }
+}
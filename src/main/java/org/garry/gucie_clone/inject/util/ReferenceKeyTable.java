@@ -0,0 +1,385 @@
+package org.garry.gucie_clone.inject.util;
+
+import java.lang.ref.Reference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent hash table of a {@link ReferenceMap} with weak or soft keys.
+ * Entries are keyed by the map's key references and matched by the identity of
+ * their referents. Lookups take either a key reference or the referent itself,
+ * so finding a key neither allocates a reference nor a wrapper. Reads don't
+ * lock. Writes lock one of the segments the table is split into and copy the
+ * part of a bucket's chain they change, so readers always see whole chains
+ *
+ * <p>Keys put must be key references. Values are compared with
+ * {@link Object#equals(Object)}
+ */
+final class ReferenceKeyTable extends AbstractMap<Object, Object>
+        implements ConcurrentMap<Object, Object> {
+
+    static final int SEGMENTS = 16;
+    static final int SEGMENT_SHIFT = 28;
+
+    /**
+     * Initial number of buckets per segment
+     */
+    static final int INITIAL_CAPACITY = 8;
+
+    final Segment[] segments = new Segment[SEGMENTS];
+
+    ReferenceKeyTable() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Hashes the identity of a key or key reference's referent. Spreads bits
+     * so both the segment and the bucket index get well mixed bits
+     */
+    static int hash(Object key) {
+        int h = key instanceof ReferenceMap.InternalReference
+                ? key.hashCode() : System.identityHashCode(key);
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        return h ^ (h >>> 16);
+    }
+
+    Segment segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    /**
+     * Matches an entry's key reference to a key or key reference. A reclaimed
+     * key only matches its own reference, which cleanup removes
+     */
+    static boolean matches(Object entryKey, Object key) {
+        if (entryKey == key) {
+            return true;
+        }
+        Object referent = ((Reference<?>) entryKey).get();
+        if (referent == null) {
+            return false;
+        }
+        return key instanceof ReferenceMap.InternalReference
+                ? referent == ((Reference<?>) key).get()
+                : referent == key;
+    }
+
+    static boolean valueEquals(Object expected, Object value) {
+        return expected == value || expected.equals(value);
+    }
+
+    @Override
+    public Object get(Object key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        ReferenceMap.ensureNotNull(key, value);
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    @Override
+    public Object putIfAbsent(Object key, Object value) {
+        ReferenceMap.ensureNotNull(key, value);
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    @Override
+    public Object replace(Object key, Object value) {
+        ReferenceMap.ensureNotNull(key, value);
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, null, value);
+    }
+
+    @Override
+    public boolean replace(Object key, Object oldValue, Object newValue) {
+        ReferenceMap.ensureNotNull(key, oldValue, newValue);
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, oldValue, newValue) != null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value) != null;
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (segment.count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Weakly consistent view of the entries, like those of
+     * {@link java.util.concurrent.ConcurrentHashMap}
+     */
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Object>>() {
+            @Override
+            public Iterator<Map.Entry<Object, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return ReferenceKeyTable.this.size();
+            }
+        };
+    }
+
+    static final class Entry {
+
+        final Object key;
+        final int hash;
+        volatile Object value;
+        final Entry next;
+
+        Entry(Object key, int hash, Object value, Entry next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    static final class Segment extends ReentrantLock {
+
+        private static final long serialVersionUID = 0;
+
+        volatile AtomicReferenceArray<Entry> table =
+                new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+
+        /**
+         * Number of entries, only written under the lock
+         */
+        volatile int count;
+
+        Entry find(Object key, int hash) {
+            AtomicReferenceArray<Entry> table = this.table;
+            for (Entry e = table.get(hash & (table.length() - 1)); e != null; e = e.next) {
+                if (e.hash == hash && matches(e.key, key)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        Object get(Object key, int hash) {
+            Entry e = find(key, hash);
+            return e == null ? null : e.value;
+        }
+
+        Object put(Object key, int hash, Object value, boolean onlyIfAbsent) {
+            lock();
+            try {
+                Entry e = find(key, hash);
+                if (e != null) {
+                    Object old = e.value;
+                    if (!onlyIfAbsent) {
+                        e.value = value;
+                    }
+                    return old;
+                }
+
+                AtomicReferenceArray<Entry> table = this.table;
+                if (count + 1 > table.length() * 3 / 4) {
+                    table = rehash(table);
+                }
+                int i = hash & (table.length() - 1);
+                table.set(i, new Entry(key, hash, value, table.get(i)));
+                count++;
+                return null;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Replaces the value of an entry, if its value equals the expected
+         * value or none is expected
+         * @return the replaced value, or null
+         */
+        Object replace(Object key, int hash, Object expected, Object value) {
+            lock();
+            try {
+                Entry e = find(key, hash);
+                if (e == null || (expected != null && !valueEquals(expected, e.value))) {
+                    return null;
+                }
+                Object old = e.value;
+                e.value = value;
+                return old;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Removes an entry, if its value equals the expected value or none is
+         * expected
+         * @return the removed value, or null
+         */
+        Object remove(Object key, int hash, Object expected) {
+            lock();
+            try {
+                AtomicReferenceArray<Entry> table = this.table;
+                int i = hash & (table.length() - 1);
+                Entry first = table.get(i);
+                Entry e = first;
+                while (e != null && !(e.hash == hash && matches(e.key, key))) {
+                    e = e.next;
+                }
+                if (e == null || (expected != null && !valueEquals(expected, e.value))) {
+                    return null;
+                }
+
+                // copy the entries before the removed one
+                Entry newFirst = e.next;
+                for (Entry p = first; p != e; p = p.next) {
+                    newFirst = new Entry(p.key, p.hash, p.value, newFirst);
+                }
+                table.set(i, newFirst);
+                count--;
+                return e.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Doubles the number of buckets. Readers keep using the old table
+         * until the new one is complete
+         */
+        AtomicReferenceArray<Entry> rehash(AtomicReferenceArray<Entry> old) {
+            AtomicReferenceArray<Entry> table =
+                    new AtomicReferenceArray<Entry>(old.length() * 2);
+            int mask = table.length() - 1;
+            for (int i = 0; i < old.length(); i++) {
+                for (Entry e = old.get(i); e != null; e = e.next) {
+                    int j = e.hash & mask;
+                    table.set(j, new Entry(e.key, e.hash, e.value, table.get(j)));
+                }
+            }
+            this.table = table;
+            return table;
+        }
+
+        void clear() {
+            lock();
+            try {
+                table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+                count = 0;
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+
+        int segment = -1;
+        AtomicReferenceArray<Entry> table;
+        int bucket;
+        Entry next;
+        Entry last;
+
+        EntryIterator() {
+            advance();
+        }
+
+        void advance() {
+            if (next != null && (next = next.next) != null) {
+                return;
+            }
+            while (true) {
+                while (table != null && bucket < table.length()) {
+                    if ((next = table.get(bucket++)) != null) {
+                        return;
+                    }
+                }
+                if (++segment == SEGMENTS) {
+                    return;
+                }
+                table = segments[segment].table;
+                bucket = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Object, Object> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            advance();
+            return new SimpleImmutableEntry<Object, Object>(last.key, last.value);
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            ReferenceKeyTable.this.remove(last.key);
+            last = null;
+        }
+    }
+}
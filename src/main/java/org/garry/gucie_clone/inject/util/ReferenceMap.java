@@ -2,8 +2,10 @@ package org.garry.gucie_clone.inject.util;
 
 import java.io.Serializable;
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static org.garry.gucie_clone.inject.util.ReferenceType.STRONG;
 
@@ -36,11 +38,21 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
 
     private static final long serialVersionUID = 0;
 
-    transient ConcurrentHashMap<Object, Object> delegate;
+    /**
+     * A {@link ConcurrentHashMap} for strong keys, and a {@link ReferenceKeyTable}
+     * for weak and soft keys, which looks keys up without wrapping them
+     */
+    transient ConcurrentMap<Object, Object> delegate;
 
     final ReferenceType keyReferenceType;
     final ReferenceType valueReferenceType;
 
+    /**
+     * Queue of this map's reclaimed references when expunging on access,
+     * null when the background thread cleans up
+     */
+    final transient ReferenceQueue<Object> queue;
+
     /**
      * Concurrent hash map that wraps keys and/or values based on specified reference types
      *
@@ -48,14 +60,41 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
      * @param valueReferenceType
      */
     public ReferenceMap(ReferenceType keyReferenceType, ReferenceType valueReferenceType) {
+        this(keyReferenceType, valueReferenceType, false);
+    }
+
+    /**
+     * Concurrent hash map that wraps keys and/or values based on specified
+     * reference types
+     *
+     * @param keyReferenceType
+     * @param valueReferenceType
+     * @param expungeOnAccess if true, the map removes entries whose keys or values
+     *  have been reclaimed when it's accessed, like {@link WeakHashMap}, rather
+     *  than leaving it to the background thread
+     */
+    public ReferenceMap(ReferenceType keyReferenceType, ReferenceType valueReferenceType,
+                        boolean expungeOnAccess) {
         ensureNotNull(keyReferenceType, valueReferenceType);
         if (keyReferenceType == ReferenceType.PHANTOM || valueReferenceType == ReferenceType.PHANTOM) {
             throw new IllegalArgumentException("Phantom references not supported.");
         }
 
-        this.delegate = new ConcurrentHashMap<Object, Object>();
+        this.delegate = keyReferenceType == STRONG
+                ? new ConcurrentHashMap<Object, Object>() : new ReferenceKeyTable();
         this.keyReferenceType = keyReferenceType;
         this.valueReferenceType = valueReferenceType;
+        this.queue = expungeOnAccess ? new ReferenceQueue<Object>() : null;
+    }
+
+    /**
+     * Removes entries whose keys or values have been reclaimed, when expunging
+     * on access
+     */
+    void expungeStaleEntries() {
+        if (queue != null) {
+            FinalizableReferenceQueue.instance.expunge(queue);
+        }
     }
 
     static void ensureNotNull(Object o) {
@@ -74,19 +113,21 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
 
     @Override
     public int size() {
+        expungeStaleEntries();
         return delegate.size();
     }
 
     @Override
     public boolean isEmpty() {
+        expungeStaleEntries();
         return delegate.isEmpty();
     }
 
     @Override
     public boolean containsKey(Object key) {
         ensureNotNull(key);
-        Object referenceAwareKey = makeKeyReferenceAware(key);
-        return delegate.containsKey(referenceAwareKey);
+        expungeStaleEntries();
+        return delegate.containsKey(key);
     }
 
     @Override
@@ -103,26 +144,17 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
     @Override
     public V get(Object key) {
         ensureNotNull(key);
+        expungeStaleEntries();
         return internalGet((K) key);
     }
 
     V internalGet(K key) {
-        Object valueReference = delegate.get(makeKeyReferenceAware(key));
+        Object valueReference = delegate.get(key);
         return valueReference == null
                 ? null
                 : (V) dereferenceValue(valueReference);
     }
 
-    /**
-     * Wraps key so it can be compared to a referenced key for equality
-     *
-     * @param o
-     * @return
-     */
-    Object makeKeyReferenceAware(Object o) {
-        return keyReferenceType == STRONG ? o : new KeyReferenceAwareWrapper(o);
-    }
-
     @Override
     public V put(K key, V value) {
         return execute(putStrategy(), key, value);
@@ -130,15 +162,25 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
 
     V execute(Strategy strategy, K key, V value) {
         ensureNotNull(key, value);
+        expungeStaleEntries();
         Object keyReference = referenceKey(key);
-        Object valueReference = strategy.execute(
-                this,
-                keyReference,
-                referenceValue(keyReference, value));
+        Object newValueReference = referenceValue(keyReference, value);
+        Object valueReference = strategy.execute(this, keyReference, newValueReference);
+        afterWrite(newValueReference, valueReference);
         return valueReference == null ? null
                 : (V) dereferenceValue(valueReference);
     }
 
+    /**
+     * Called after a write through a {@link Strategy}, or a removal. Does
+     * nothing, bounded caches track their entries here
+     *
+     * @param added value reference the write tried to add, or null
+     * @param replaced value reference the strategy returned, or null
+     */
+    void afterWrite(Object added, Object replaced) {
+    }
+
     /**
      * Creates a reference for a key
      *
@@ -155,7 +197,7 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
     }
 
     protected interface Strategy {
-        public Object execute(ReferenceMap map, Object keyReference, Object valueReference);
+        public Object execute(ReferenceMap<?, ?> map, Object keyReference, Object valueReference);
     }
 
     protected Strategy putStrategy() {
@@ -164,21 +206,21 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
 
     private enum PutStrategy implements Strategy {
         PUT {
-            public Object execute(ReferenceMap map, Object keyReference,
+            public Object execute(ReferenceMap<?, ?> map, Object keyReference,
                                   Object valueReference) {
                 return map.delegate.put(keyReference, valueReference);
             }
         },
 
         REPLACE {
-            public Object execute(ReferenceMap map, Object keyReference,
+            public Object execute(ReferenceMap<?, ?> map, Object keyReference,
                                   Object valueReference) {
                 return map.delegate.replace(keyReference, valueReference);
             }
         },
 
         PU_IF_ABSENT {
-            public Object execute(ReferenceMap map, Object keyReference,
+            public Object execute(ReferenceMap<?, ?> map, Object keyReference,
                                   Object valueReference) {
                 return map.delegate.putIfAbsent(keyReference, valueReference);
             }
@@ -188,8 +230,11 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
     @Override
     public V remove(Object key) {
         ensureNotNull(key);
-        Object referenceAwareKey = makeKeyReferenceAware(key);
-        Object valueReference = delegate.remove(referenceAwareKey);
+        expungeStaleEntries();
+        Object valueReference = delegate.remove(key);
+        if (valueReference != null) {
+            afterWrite(null, valueReference);
+        }
         return valueReference == null ? null :
                 (V) dereferenceValue(valueReference);
     }
@@ -271,11 +316,12 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
     /**
      * Dereferences a collection of value reference
      */
-    Collection<V> dereferenceValues(Collection valueReferences) {
-        return valueReferenceType == STRONG
+    @SuppressWarnings("unchecked")
+    Collection<V> dereferenceValues(Collection<Object> valueReferences) {
+        return (Collection<V>) (valueReferenceType == STRONG
                 ? valueReferences
                 : dereferenceCollection(valueReferenceType, valueReferences,
-                new ArrayList<>(valueReferences.size()));
+                new ArrayList<Object>(valueReferences.size())));
     }
 
     /**
@@ -331,7 +377,7 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
         Object keyReference;
 
         public SoftValueReference(Object keyReference, Object value) {
-            super(value);
+            super(value, referenceQueue());
             this.keyReference = keyReference;
         }
 
@@ -349,7 +395,7 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
         Object keyReference;
 
         public WeakValueReference(Object keyReference, Object value) {
-            super(value);
+            super(value, referenceQueue());
             this.keyReference = keyReference;
         }
 
@@ -366,9 +412,9 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
 
     /**
      * Test weak and soft references for identity equality. Compares references to
-     * other references and wrappers.If o is a reference,this returns true
-     * if r == o or if r and o reference the same non null object.If o is a
-     * wrapper, this returns true if r's referent is identical to wrapped object
+     * other references and referents.If o is a reference,this returns true
+     * if r == o or if r and o reference the same non null object.Otherwise,
+     * this returns true if r's referent is o
      *
      * @param r
      * @param o
@@ -386,34 +432,8 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
             Object referent = ((Reference) o).get();
             return referent != null && referent == r.get();
         }
-        // is the wrapped object identical to referent ? used in lookups
-        return ((ReferenceAwareWrapper) o).unwrap() == r.get();
-    }
-
-    /**
-     * Big hack.Used to compare keys and values to referenced keys and values
-     * without creating more references
-     */
-    static class ReferenceAwareWrapper {
-
-        Object wrapped;
-
-        ReferenceAwareWrapper(Object wrapped) {
-            this.wrapped = wrapped;
-        }
-
-        Object unwrap() {
-            return wrapped;
-        }
-
-        public int hashCode() {
-            return wrapped.hashCode();
-        }
-
-        public boolean equals(Object obj) {
-            // defer to reference's equals() logic
-            return obj.equals(this);
-        }
+        // is o the referent?
+        return o != null && o == r.get();
     }
 
     class Entry implements Map.Entry<K, V> {
@@ -457,27 +477,13 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
 
     }
 
-    /**
-     * Used for keys. Overrides hash code to use identity hash code
-     */
-    static class KeyReferenceAwareWrapper extends ReferenceAwareWrapper {
-
-        public KeyReferenceAwareWrapper(Object wrapped) {
-            super(wrapped);
-        }
-
-        public int hashCode() {
-            return System.identityHashCode(wrapped);
-        }
-    }
-
     class SoftKeyReference extends FinalizableSoftReference<Object>
             implements InternalReference {
 
         int hashCode;
 
         public SoftKeyReference(Object key){
-            super(key);
+            super(key, referenceQueue());
             this.hashCode = keyHashCode(key);
         }
 
@@ -502,7 +508,7 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
         int hashCode;
 
         public WeakKeyReference(Object key){
-            super(key);
+            super(key, referenceQueue());
             this.hashCode = keyHashCode(key);
         }
 
@@ -521,6 +527,13 @@ public class ReferenceMap<K, V> implements Map<K, V>, Serializable {
         }
     }
 
+    /**
+     * Gets the queue this map's references register with
+     */
+    ReferenceQueue<Object> referenceQueue() {
+        return queue == null ? FinalizableReferenceQueue.getInstance() : queue;
+    }
+
     static int keyHashCode(Object key) {
         return System.identityHashCode(key);
     }
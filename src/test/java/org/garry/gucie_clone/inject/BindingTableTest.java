@@ -0,0 +1,166 @@
+package org.garry.gucie_clone.inject;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lives in the container's package since {@link BindingTable} is package
+ * private
+ */
+public class BindingTableTest extends TestCase {
+
+    public void testEmptyTable() {
+        BindingTable table = newTable(Object.class, new ArrayList<String>());
+        assertEquals(0, table.size());
+        assertEquals(2, table.slots.length);
+        assertEquals(-1, table.indexOf(Object.class, "default"));
+        assertNull(table.getFactory(Key.newInstance(Object.class, "default")));
+    }
+
+    public void testSizing() {
+        int[] sizes = {1, 2, 3, 4, 5, 7, 8, 9, 100, 1000, 1024, 1025};
+        for (int size : sizes) {
+            BindingTable table = newTable(Object.class, names("k", size));
+            int capacity = table.slots.length;
+            assertEquals(size, table.size());
+            assertEquals(capacity - 1, table.mask);
+            assertEquals("power of two for " + size, 1, Integer.bitCount(capacity));
+            // load factor at most one half, without growing past one quarter
+            assertTrue("capacity " + capacity + " for " + size, capacity >= size * 2);
+            assertTrue("capacity " + capacity + " for " + size, capacity <= size * 4);
+        }
+    }
+
+    public void testSameHashCode() {
+        // "Aa" and "BB" share a hash code, so these names all collide
+        List<String> names = collidingNames("", 3);
+        List<String> bound = names.subList(0, 4);
+        BindingTable table = newTable(Object.class, bound);
+
+        for (int id = 0; id < bound.size(); id++) {
+            assertEquals(id, table.indexOf(Object.class, bound.get(id)));
+        }
+        // same hash code, different names
+        for (String name : names.subList(4, names.size())) {
+            assertEquals(-1, table.indexOf(Object.class, name));
+        }
+    }
+
+    public void testSameSlot() {
+        // different hash codes which land in the same slot
+        int mask = newTable(Object.class, names("k", 8)).mask;
+        int home = slot("k0", mask);
+        List<String> bound = new ArrayList<>();
+        for (int i = 0; bound.size() < 8; i++) {
+            if (slot("k" + i, mask) == home) {
+                bound.add("k" + i);
+            }
+        }
+        BindingTable table = newTable(Object.class, bound);
+        assertEquals(mask, table.mask);
+
+        for (int id = 0; id < bound.size(); id++) {
+            assertEquals(id, table.indexOf(Object.class, bound.get(id)));
+            assertEquals(Key.newInstance(Object.class, bound.get(id)), table.getKey(id));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(-1, table.indexOf(Object.class, "missing" + i));
+        }
+    }
+
+    public void testProbeWrapsAround() {
+        // find colliding names whose home is the last slot
+        int mask = newTable(Object.class, names("k", 4)).mask;
+        List<String> names = null;
+        for (int i = 0; names == null; i++) {
+            List<String> candidates = collidingNames("p" + i, 3);
+            if (slot(candidates.get(0), mask) == mask) {
+                names = candidates;
+            }
+        }
+        List<String> bound = names.subList(0, 4);
+        BindingTable table = newTable(Object.class, bound);
+        assertEquals(mask, table.mask);
+
+        // the first sits in the last slot, the rest wrapped to the start
+        assertEquals(1, table.slots[mask]);
+        assertEquals(2, table.slots[0]);
+        assertEquals(3, table.slots[1]);
+        assertEquals(4, table.slots[2]);
+
+        for (int id = 0; id < bound.size(); id++) {
+            assertEquals(id, table.indexOf(Object.class, bound.get(id)));
+        }
+        for (String name : names.subList(4, names.size())) {
+            assertEquals(-1, table.indexOf(Object.class, name));
+        }
+    }
+
+    public void testLargeTable() {
+        List<String> names = names("k", 10000);
+        BindingTable table = newTable(String.class, names);
+
+        for (int id = 0; id < names.size(); id++) {
+            String name = names.get(id);
+            assertEquals(id, table.indexOf(String.class, name));
+            // equal but not the same string
+            assertEquals(id, table.indexOf(String.class, new String(name)));
+            assertEquals(name, table.getKey(id).getName());
+            assertSame(table.getFactory(id),
+                    table.getFactory(Key.newInstance(String.class, name)));
+        }
+        for (int i = 0; i < names.size(); i++) {
+            assertEquals(-1, table.indexOf(String.class, "m" + i));
+            // right name, wrong type
+            assertEquals(-1, table.indexOf(Integer.class, names.get(i)));
+            assertNull(table.getFactory(Key.newInstance(Object.class, names.get(i))));
+        }
+    }
+
+    static BindingTable newTable(Class<?> type, List<String> names) {
+        Map<Key<?>, InternalFactory<?>> bindings = new LinkedHashMap<>();
+        for (final String name : names) {
+            bindings.put(Key.newInstance(type, name), new InternalFactory<Object>() {
+                @Override
+                public Object create(InternalContext context) {
+                    return name;
+                }
+            });
+        }
+        return new BindingTable(bindings);
+    }
+
+    static List<String> names(String prefix, int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + i);
+        }
+        return names;
+    }
+
+    /**
+     * Gets the 2^blocks names made of the prefix and "Aa" or "BB" blocks, which
+     * all have the same hash code
+     */
+    static List<String> collidingNames(String prefix, int blocks) {
+        List<String> names = new ArrayList<>();
+        names.add(prefix);
+        for (int i = 0; i < blocks; i++) {
+            List<String> longer = new ArrayList<>();
+            for (String name : names) {
+                longer.add(name + "Aa");
+                longer.add(name + "BB");
+            }
+            names = longer;
+        }
+        return names;
+    }
+
+    static int slot(String name, int mask) {
+        return BindingTable.spread(Key.hashCode(Object.class, name)) & mask;
+    }
+}
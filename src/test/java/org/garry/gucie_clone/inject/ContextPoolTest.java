@@ -0,0 +1,81 @@
+package org.garry.gucie_clone.inject;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Lives in the container's package since {@link ContextPool} is package
+ * private
+ */
+public class ContextPoolTest extends TestCase {
+
+    public void testReusesReleasedContexts() {
+        ContextPool pool = new ContextPool(4);
+        InternalContext context = pool.acquire();
+        pool.release(context);
+        assertSame(context, pool.acquire());
+        // empty again
+        assertNotSame(context, pool.acquire());
+    }
+
+    public void testHeldContextsAreDistinct() {
+        ContextPool pool = new ContextPool(4);
+        InternalContext[] held = new InternalContext[4];
+        for (int i = 0; i < held.length; i++) {
+            held[i] = pool.acquire();
+            pool.release(pool.acquire());
+        }
+        Set<InternalContext> distinct =
+                Collections.newSetFromMap(new IdentityHashMap<InternalContext, Boolean>());
+        Collections.addAll(distinct, held);
+        assertEquals(held.length, distinct.size());
+    }
+
+    public void testDropsContextsWhenFull() {
+        ContextPool pool = new ContextPool(3);
+        assertEquals(4, pool.contexts.length());
+
+        InternalContext[] released = new InternalContext[6];
+        for (int i = 0; i < released.length; i++) {
+            released[i] = new InternalContext();
+            pool.release(released[i]);
+        }
+        Set<InternalContext> kept =
+                Collections.newSetFromMap(new IdentityHashMap<InternalContext, Boolean>());
+        for (int i = 0; i < released.length; i++) {
+            kept.add(pool.acquire());
+        }
+        // four from the pool, then two new ones
+        int reused = 0;
+        for (InternalContext context : released) {
+            if (kept.contains(context)) {
+                reused++;
+            }
+        }
+        assertEquals(4, reused);
+        assertEquals(6, kept.size());
+    }
+
+    public void testScopedContainerReusesContexts() {
+        ContainerImpl container = (ContainerImpl) new ContainerBuilder()
+                .contextPropagation(ContextPropagation.SCOPED)
+                .create(false);
+        final InternalContext[] seen = new InternalContext[2];
+        for (int i = 0; i < seen.length; i++) {
+            final int call = i;
+            container.callInContext(new ContainerImpl.ContextualCallable<Void>() {
+                @Override
+                public Void call(InternalContext context) {
+                    seen[call] = context;
+                    return null;
+                }
+            });
+            // the thread keeps nothing between calls
+            assertNull(container.localContext.get());
+        }
+        assertSame(seen[0], seen[1]);
+    }
+}
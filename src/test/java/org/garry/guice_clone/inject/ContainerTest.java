@@ -3,12 +3,44 @@ package org.garry.guice_clone.inject;
 import junit.framework.TestCase;
 import org.garry.gucie_clone.inject.*;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ContainerTest extends TestCase {
 
     public void testInjection() {
+        assertFooInjected(createFooContainer());
+    }
 
-        Container container = createFooContainer();
+    public void testReflectionInvocation() {
+        assertFooInjected(createFooContainer(Invocation.REFLECTION));
+    }
 
+    private void assertFooInjected(Container container) {
         Foo foo = container.inject(Foo.class);
 
         assertEquals("test", foo.s);
@@ -22,9 +54,14 @@ public class ContainerTest extends TestCase {
     }
 
     private Container createFooContainer() {
+        return createFooContainer(Invocation.METHOD_HANDLES);
+    }
+
+    private Container createFooContainer(Invocation invocation) {
 
         ContainerBuilder builder = new ContainerBuilder();
         builder
+                .invocation(invocation)
                 .factory(Bar.class, BarImpl.class)
                 .factory(Tee.class, TeeImpl.class)
                 .constant("s","test")
@@ -62,6 +99,52 @@ public class ContainerTest extends TestCase {
 
     }
 
+    public void testGetProvider(){
+        Container container = createFooContainer();
+
+        Provider<Bar> bar = container.getProvider(Bar.class);
+        assertSame(bar.get(), container.getInstance(Bar.class));
+        Provider<Tee> tee = container.getProvider(Tee.class, Container.DEFAULT_NAME);
+        assertNotSame(tee.get(), tee.get());
+        assertEquals("test", tee.get().getS());
+
+        try {
+            container.getProvider(Foo.class);
+            fail();
+        } catch (DependencyException expected) {}
+    }
+
+    public void testProviderInjection() {
+        for (Invocation invocation : Invocation.values()) {
+            Container container = createFooContainer(invocation);
+            Deferred deferred = container.inject(Deferred.class);
+
+            assertNotSame(deferred.tee.get(), deferred.tee.get());
+            assertSame(deferred.bar.get(), deferred.bar.get());
+            assertSame(container.getInstance(Bar.class), deferred.bar.get());
+            assertEquals("test", deferred.s.get());
+        }
+    }
+
+    static class Deferred {
+
+        @Inject Provider<Tee> tee;
+
+        final Lazy<Bar> bar;
+
+        javax.inject.Provider<String> s;
+
+        @Inject
+        Deferred(Lazy<Bar> bar) {
+            this.bar = bar;
+        }
+
+        @Inject("s")
+        void setS(javax.inject.Provider<String> s) {
+            this.s = s;
+        }
+    }
+
     interface Bar {
 
         Tee getTee();
@@ -169,6 +252,766 @@ public class ContainerTest extends TestCase {
         }
     }
 
+    public void testFlightRecorderEvents() throws Exception {
+        Container container = new ContainerBuilder()
+                .factory(A.class, AImpl.class)
+                .factory(B.class, BImpl.class)
+                .create(false);
+
+        Path file = Files.createTempFile("container", ".jfr");
+        Recording recording = new Recording();
+        try {
+            recording.enable("org.garry.inject.CallInContext").withThreshold(Duration.ZERO);
+            recording.enable("org.garry.inject.Construct").withThreshold(Duration.ZERO);
+            recording.start();
+            container.inject(AImpl.class);
+            recording.stop();
+            recording.dump(file);
+
+            int calls = 0;
+            List<String> constructed = new ArrayList<String>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                String name = event.getEventType().getName();
+                if (name.equals("org.garry.inject.CallInContext")) {
+                    calls++;
+                } else if (name.equals("org.garry.inject.Construct")) {
+                    constructed.add(event.getClass("implementation").getName()
+                            + (event.getBoolean("proxy") ? " proxy" : ""));
+                }
+            }
+            assertEquals(1, calls);
+            // b gets a proxy of a
+            assertEquals(Arrays.asList(AImpl.class.getName() + " proxy",
+                    BImpl.class.getName(), AImpl.class.getName()), constructed);
+        } finally {
+            recording.close();
+            Files.delete(file);
+        }
+    }
+
+    public void testPrimitiveConstants() {
+        for (Invocation invocation : Invocation.values()) {
+            Container container = new ContainerBuilder()
+                    .invocation(invocation)
+                    .constant("i", 5)
+                    .constant("l", 6L)
+                    .constant("d", 7.5)
+                    .constant("b", true)
+                    .constant("c", 'c')
+                    .create(false);
+
+            Primitives primitives = container.inject(Primitives.class);
+            assertEquals(5, primitives.i);
+            assertEquals(6L, primitives.l);
+            assertEquals(7.5, primitives.d, 0);
+            assertTrue(primitives.b);
+            assertEquals('c', primitives.c);
+        }
+    }
+
+    static class Primitives {
+        @Inject("i") int i;
+        @Inject("l") long l;
+        @Inject("d") double d;
+        @Inject("b") boolean b;
+        @Inject("c") char c;
+    }
+
+    public void testMethodInjectionFailure() {
+        for (Invocation invocation : Invocation.values()) {
+            Container container = new ContainerBuilder()
+                    .invocation(invocation)
+                    .constant("s", "test")
+                    .create(false);
+            try {
+                container.inject(new Failing());
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("test", e.getMessage());
+            }
+        }
+    }
+
+    public void testContextResetAfterFailure() {
+        Container container = new ContainerBuilder()
+                .constant("s", "test")
+                .create(false);
+        // the thread's context is reused, so it must not remember the failed instance
+        for (int i = 0; i < 2; i++) {
+            try {
+                container.inject(Failing.class);
+                fail();
+            } catch (RuntimeException e) {
+                assertEquals("test", e.getCause().getMessage());
+            }
+        }
+    }
+
+    static class Failing {
+        @Inject("s")
+        void fail(String s) {
+            throw new IllegalStateException(s);
+        }
+    }
+
+    public void testSingletonCycleAcrossThreads() throws InterruptedException {
+        final Container container = new ContainerBuilder()
+                .factory(SlowA.class, SlowA.class)
+                .factory(SlowB.class, SlowB.class)
+                .create(false);
+        SlowA.started = new CountDownLatch(2);
+
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread a = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    container.getInstance(SlowA.class);
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+        Thread b = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    container.getInstance(SlowB.class);
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+        a.start();
+        b.start();
+        a.join(5000);
+        b.join(5000);
+
+        assertFalse("deadlock", a.isAlive() || b.isAlive());
+        // either thread, or both, may see the cycle
+        assertFalse(failures.isEmpty());
+        for (Throwable failure : failures) {
+            assertTrue(failure instanceof DependencyException);
+        }
+        assertSame(container.getInstance(SlowA.class), container.getInstance(SlowB.class).a);
+    }
+
+    @Scoped(Scope.SINGLETON)
+    static class SlowA {
+        static CountDownLatch started;
+
+        SlowB b;
+
+        SlowA() throws InterruptedException {
+            started.countDown();
+            started.await();
+        }
+
+        @Inject
+        void setB(SlowB b) {
+            this.b = b;
+        }
+    }
+
+    @Scoped(Scope.SINGLETON)
+    static class SlowB {
+        SlowA a;
+
+        SlowB() throws InterruptedException {
+            SlowA.started.countDown();
+            SlowA.started.await();
+        }
+
+        @Inject
+        void setA(SlowA a) {
+            this.a = a;
+        }
+    }
+
+    public void testParallelSingletonLoading() {
+        // SlowA and SlowB depend on each other, so they load on one thread
+        SlowA.started = new CountDownLatch(0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Container container = new ContainerBuilder()
+                    .factory(Bar.class, BarImpl.class)
+                    .factory(Tee.class, TeeImpl.class)
+                    .factory(SlowA.class, SlowA.class)
+                    .factory(SlowB.class, SlowB.class)
+                    .constant("s", "test")
+                    .constant("i", 5)
+                    .create(executor);
+
+            Bar bar = container.getInstance(Bar.class);
+            assertSame(bar, container.getInstance(Bar.class));
+            assertSame(bar, bar.getTee().getBar());
+            assertSame(container.getInstance(SlowA.class), container.getInstance(SlowB.class).a);
+            assertSame(container.getInstance(SlowB.class), container.getInstance(SlowA.class).b);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testRejectedSingletonLoading() {
+        final AtomicInteger tasks = new AtomicInteger();
+        Executor rejectSecond = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (tasks.incrementAndGet() > 1) {
+                    throw new RejectedExecutionException();
+                }
+                command.run();
+            }
+        };
+        try {
+            new ContainerBuilder()
+                    .factory(Loaded.class, Loaded.class)
+                    .factory(DependsOnLoaded.class, DependsOnLoaded.class)
+                    .create(rejectSecond);
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals(2, tasks.get());
+        }
+    }
+
+    @Scoped(Scope.SINGLETON)
+    static class Loaded {}
+
+    @Scoped(Scope.SINGLETON)
+    static class DependsOnLoaded {
+        @Inject Loaded loaded;
+    }
+
+    public void testCallInScope() throws Exception {
+        final Container container = new ContainerBuilder()
+                .contextPropagation(ContextPropagation.SCOPED)
+                .factory(Object.class, "request", Object.class, Scope.REQUEST)
+                .factory(Object.class, "thread", Object.class, Scope.PLATFORM_THREAD)
+                .create(false);
+
+        Callable<Object[]> twice = new Callable<Object[]>() {
+            @Override
+            public Object[] call() {
+                return new Object[] {
+                        container.getInstance(Object.class, "request"),
+                        container.getInstance(Object.class, "request")
+                };
+            }
+        };
+        Object[] first = container.callInScope(new RequestStrategy(), twice);
+        Object[] second = container.callInScope(new RequestStrategy(), twice);
+        assertSame(first[0], first[1]);
+        assertNotSame(first[0], second[0]);
+
+        try {
+            // the strategy didn't outlive its call
+            container.getInstance(Object.class, "request");
+            fail();
+        } catch (IllegalStateException expected) {}
+
+        assertSame(container.getInstance(Object.class, "thread"),
+                container.getInstance(Object.class, "thread"));
+    }
+
+    static class RequestStrategy implements Scope.Strategy {
+
+        final Map<String, Object> request = new HashMap<String, Object>();
+
+        @Override
+        public <T> T findInRequest(Class<T> type, String name,
+                                   Callable<? extends T> factory) throws Exception {
+            Object t = request.get(name);
+            if (t == null) {
+                t = factory.call();
+                request.put(name, t);
+            }
+            return type.cast(t);
+        }
+
+        @Override
+        public <T> T findInSession(Class<T> type, String name,
+                                   Callable<? extends T> factory) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T findInWizard(Class<T> type, String name,
+                                  Callable<? extends T> factory) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public void testScopeStore() throws Exception {
+        final Container container = new ContainerBuilder()
+                .factory(Object.class, "request", Object.class, Scope.REQUEST)
+                .factory(Object.class, "session", Object.class, Scope.SESSION)
+                .create(false);
+        ScopeStore store = new ScopeStore(1, TimeUnit.HOURS, 1);
+
+        Callable<Object[]> lookup = new Callable<Object[]>() {
+            @Override
+            public Object[] call() {
+                return new Object[] {
+                        container.getInstance(Object.class, "request"),
+                        container.getInstance(Object.class, "request"),
+                        container.getInstance(Object.class, "session")
+                };
+            }
+        };
+        Object[] first = container.callInScope(store.open("a"), lookup);
+        Object[] second = container.callInScope(store.open("a"), lookup);
+        assertSame(first[0], first[1]);
+        assertNotSame(first[0], second[0]);
+        assertSame(first[2], second[2]);
+
+        // session b evicts session a
+        container.callInScope(store.open("b"), lookup);
+        Object[] third = container.callInScope(store.open("a"), lookup);
+        assertNotSame(first[2], third[2]);
+
+        ScopeStoreStats stats = store.getStats();
+        assertEquals(1, stats.getSessions());
+        assertEquals(4, stats.getRequests());
+        assertEquals(1, stats.getSessionHits());
+        assertEquals(3, stats.getSessionMisses());
+        assertEquals(2, stats.getEvicted());
+    }
+
+    public void testScopeStoreEvictsInBatches() {
+        ScopeStore store = new ScopeStore(1, TimeUnit.HOURS, 32);
+        for (int i = 0; i <= 32; i++) {
+            store.open(String.valueOf(i));
+        }
+        // one eviction makes room for the next sessions
+        assertEquals(30, store.getStats().getSessions());
+        assertEquals(3, store.getStats().getEvicted());
+
+        store.open("a");
+        store.open("b");
+        assertEquals(32, store.getStats().getSessions());
+        assertEquals(3, store.getStats().getEvicted());
+    }
+
+    public void testSessionCycleAcrossRequests() throws InterruptedException {
+        final Container container = new ContainerBuilder()
+                .factory(SessionA.class, SessionA.class)
+                .factory(SessionB.class, SessionB.class)
+                .create(false);
+        final ScopeStore store = new ScopeStore(1, TimeUnit.HOURS, 10);
+        SessionA.started = new CountDownLatch(2);
+
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final Class<?> type = i == 0 ? SessionA.class : SessionB.class;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        container.callInScope(store.open("s"), new Callable<Object>() {
+                            @Override
+                            public Object call() {
+                                return container.getInstance(type);
+                            }
+                        });
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertFalse("deadlock", threads[0].isAlive() || threads[1].isAlive());
+        // once one request fails, the other may finish the cycle on its own thread
+        assertFalse(failures.isEmpty());
+        for (Throwable failure : failures) {
+            while (!(failure instanceof DependencyException)) {
+                assertNotNull(failure.getCause());
+                failure = failure.getCause();
+            }
+        }
+    }
+
+    @Scoped(Scope.SESSION)
+    static class SessionA {
+        static CountDownLatch started;
+
+        SessionA() throws InterruptedException {
+            started.countDown();
+            started.await();
+        }
+
+        @Inject
+        void setB(SessionB b) {}
+    }
+
+    @Scoped(Scope.SESSION)
+    static class SessionB {
+        SessionB() throws InterruptedException {
+            SessionA.started.countDown();
+            SessionA.started.await();
+        }
+
+        @Inject
+        void setA(SessionA a) {}
+    }
+
+    public void testScopeStoreCycles() throws Exception {
+        final Container container = new ContainerBuilder()
+                .factory(RequestA.class, RequestA.class)
+                .factory(RequestB.class, RequestB.class)
+                .factory(SessionC.class, SessionC.class)
+                .factory(SessionD.class, SessionD.class)
+                .create(false);
+        ScopeStore store = new ScopeStore(1, TimeUnit.HOURS, 10);
+
+        Object[] instances = container.callInScope(store.open("a"), new Callable<Object[]>() {
+            @Override
+            public Object[] call() {
+                return new Object[] {
+                        container.getInstance(RequestA.class),
+                        container.getInstance(SessionC.class)
+                };
+            }
+        });
+        RequestA a = (RequestA) instances[0];
+        SessionC c = (SessionC) instances[1];
+        assertSame(a, a.b.a);
+        assertSame(c, c.d.c);
+    }
+
+    @Scoped(Scope.SESSION)
+    static class SessionC {
+        @Inject SessionD d;
+    }
+
+    @Scoped(Scope.SESSION)
+    static class SessionD {
+        @Inject SessionC c;
+    }
+
+    public void testScopeStoreWizard() throws Exception {
+        final Container container = new ContainerBuilder()
+                .factory(Object.class, "wizard", Object.class, Scope.WIZARD)
+                .create(false);
+        ScopeStore store = new ScopeStore(1, TimeUnit.HOURS, 10);
+
+        Callable<Object[]> lookup = new Callable<Object[]>() {
+            @Override
+            public Object[] call() {
+                return new Object[] {
+                        container.getInstance(Object.class, "wizard"),
+                        container.getInstance(Object.class, "wizard")
+                };
+            }
+        };
+        Object[] instances = container.callInScope(store.open("a", new WizardStrategy()), lookup);
+        assertNotNull(instances[0]);
+        assertSame(instances[0], instances[1]);
+
+        try {
+            // no delegate for the wizard scope
+            container.callInScope(store.open("a"), lookup);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    static class WizardStrategy implements Scope.Strategy {
+
+        final Map<String, Object> wizard = new HashMap<String, Object>();
+
+        @Override
+        public <T> T findInRequest(Class<T> type, String name,
+                                   Callable<? extends T> factory) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T findInSession(Class<T> type, String name,
+                                   Callable<? extends T> factory) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T findInWizard(Class<T> type, String name,
+                                  Callable<? extends T> factory) throws Exception {
+            Object t = wizard.get(name);
+            if (t == null) {
+                t = factory.call();
+                wizard.put(name, t);
+            }
+            return type.cast(t);
+        }
+    }
+
+    public void testRequestArena() throws Exception {
+        final Container container = new ContainerBuilder()
+                .factory(Object.class, "request", Object.class, Scope.REQUEST)
+                .factory(Object.class, "session", Object.class, Scope.SESSION)
+                .create(false);
+        ScopeStore store = new ScopeStore(1, TimeUnit.HOURS, 10);
+
+        Callable<Object[]> lookup = new Callable<Object[]>() {
+            @Override
+            public Object[] call() {
+                return new Object[] {
+                        container.getInstance(Object.class, "request"),
+                        container.getInstance(Object.class, "request"),
+                        container.getInstance(Object.class, "session")
+                };
+            }
+        };
+        Object[] first = container.callInScope(container.newRequestArena(store.open("a")), lookup);
+        Object[] second = container.callInScope(container.newRequestArena(store.open("a")), lookup);
+        assertSame(first[0], first[1]);
+        assertNotSame(first[0], second[0]);
+        assertSame(first[2], second[2]);
+
+        try {
+            // no delegate for the session scope
+            container.callInScope(container.newRequestArena(null), lookup);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    public void testMutuallyDependentRequestScoped() throws Exception {
+        final Container container = new ContainerBuilder()
+                .factory(RequestA.class, RequestA.class)
+                .factory(RequestB.class, RequestB.class)
+                .create(false);
+
+        RequestA a = container.callInScope(container.newRequestArena(null),
+                new Callable<RequestA>() {
+                    @Override
+                    public RequestA call() {
+                        RequestA a = container.getInstance(RequestA.class);
+                        assertSame(a.b, container.getInstance(RequestB.class));
+                        return a;
+                    }
+                });
+        assertSame(a, a.b.a);
+    }
+
+    @Scoped(Scope.REQUEST)
+    static class RequestA {
+        @Inject RequestB b;
+    }
+
+    @Scoped(Scope.REQUEST)
+    static class RequestB {
+        @Inject RequestA a;
+    }
+
+    public void testThreadScope() throws InterruptedException {
+        final Container container = new ContainerBuilder()
+                .threadScopeLimit(1)
+                .factory(Object.class, "a", Object.class, Scope.THREAD)
+                .factory(Object.class, "b", Object.class, Scope.THREAD)
+                .create(false);
+
+        Object a = container.getInstance(Object.class, "a");
+        assertSame(a, container.getInstance(Object.class, "a"));
+        // b evicts a
+        container.getInstance(Object.class, "b");
+        assertNotSame(a, container.getInstance(Object.class, "a"));
+        assertEquals(2, container.getThreadScopeStats().getEvicted());
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                container.getInstance(Object.class, "a");
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(2, container.getThreadScopeStats().getThreads());
+        assertEquals(1, container.sweepThreadScope());
+
+        container.purgeThreadScope(Thread.currentThread());
+        ThreadScopeStats stats = container.getThreadScopeStats();
+        assertEquals(0, stats.getThreads());
+        assertEquals(0, stats.getInstances());
+        assertEquals(4, stats.getCreated());
+    }
+
+    public void testPlatformThreadScope() throws InterruptedException {
+        final Container container = new ContainerBuilder()
+                .threadScopeLimit(1)
+                .factory(Object.class, "a", Object.class, Scope.PLATFORM_THREAD)
+                .factory(Object.class, "b", Object.class, Scope.PLATFORM_THREAD)
+                .create(false);
+
+        Object a = container.getInstance(Object.class, "a");
+        assertSame(a, container.getInstance(Object.class, "a"));
+        // b evicts a
+        container.getInstance(Object.class, "b");
+        assertNotSame(a, container.getInstance(Object.class, "a"));
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                container.getInstance(Object.class, "a");
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(2, container.getThreadScopeStats().getThreads());
+        assertEquals(1, container.sweepThreadScope());
+
+        a = container.getInstance(Object.class, "a");
+        container.purgeThreadScope(Thread.currentThread());
+        assertEquals(0, container.getThreadScopeStats().getInstances());
+        assertNotSame(a, container.getInstance(Object.class, "a"));
+    }
+
+    public void testMetrics() throws Exception {
+        Container container = new ContainerBuilder()
+                .metrics()
+                .factory(Object.class, "default", Object.class, Scope.DEFAULT)
+                .factory(Object.class, "singleton", Object.class, Scope.SINGLETON)
+                .constant("s", "test")
+                .create(false);
+
+        for (int i = 0; i < 3; i++) {
+            container.getInstance(Object.class, "default");
+            container.getInstance(Object.class, "singleton");
+        }
+
+        BindingMetrics metrics = container.getBindingMetrics(Object.class, "default");
+        assertEquals(3, metrics.getLookups());
+        assertEquals(3, metrics.getCreations());
+        assertEquals(0, metrics.getScopeHits());
+        metrics = container.getBindingMetrics(Object.class, "singleton");
+        assertEquals(3, metrics.getLookups());
+        assertEquals(1, metrics.getCreations());
+        assertEquals(2, metrics.getScopeHits());
+        assertTrue(metrics.getLatencyPercentile(100) > 0);
+        assertNull(container.getBindingMetrics(String.class, "s"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.garry.inject:type=Container,name=testMetrics");
+        server.registerMBean(container.getMetricsMXBean(), name);
+        try {
+            assertEquals(6L, server.getAttribute(name, "Lookups"));
+            assertEquals(2, ((Object[]) server.getAttribute(name, "BindingMetrics")).length);
+        } finally {
+            server.unregisterMBean(name);
+        }
+
+        assertTrue(new ContainerBuilder().create(false).getBindingMetrics().isEmpty());
+    }
+
+    public void testGetInstanceAsync() throws Exception {
+        final List<CompletableFuture<String>> started = new ArrayList<CompletableFuture<String>>();
+        AsyncFactory<String> factory = new AsyncFactory<String>() {
+            @Override
+            public CompletionStage<String> create(Context context) {
+                CompletableFuture<String> future = new CompletableFuture<String>();
+                started.add(future);
+                return future;
+            }
+        };
+        Container container = new ContainerBuilder()
+                .asyncFactory(String.class, "a", factory, Scope.DEFAULT)
+                .asyncFactory(String.class, "b", factory, Scope.SINGLETON)
+                .factory(Remote.class, Remote.class)
+                .create(false);
+
+        CompletableFuture<Remote> first = container.getInstanceAsync(Remote.class);
+        CompletableFuture<Remote> second = container.getInstanceAsync(Remote.class);
+        // both dependencies started at once, and the singleton only once
+        assertEquals(3, started.size());
+        assertFalse(first.isDone());
+
+        started.get(0).complete("a");
+        started.get(1).complete("b");
+        started.get(2).complete("c");
+        assertEquals("a", first.get().a);
+        assertEquals("b", first.get().b);
+        assertEquals("c", second.get().a);
+        assertEquals("b", second.get().b);
+    }
+
+    static class Remote {
+        final String a;
+        final String b;
+
+        @Inject
+        Remote(@Inject("a") String a, @Inject("b") String b) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    public void testGetInstanceAsyncPerInjectionPoint() throws Exception {
+        final List<CompletableFuture<String>> started = new ArrayList<CompletableFuture<String>>();
+        AsyncFactory<String> factory = new AsyncFactory<String>() {
+            @Override
+            public CompletionStage<String> create(Context context) {
+                CompletableFuture<String> future = new CompletableFuture<String>();
+                started.add(future);
+                return future;
+            }
+        };
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Container container = new ContainerBuilder()
+                .asyncFactory(String.class, "c", factory, Scope.DEFAULT)
+                .factory(Twice.class, Twice.class)
+                .factory(Pair.class, Pair.class)
+                .asyncExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable task) {
+                        tasks.add(task);
+                    }
+                })
+                .create(false);
+
+        // one future per injection point, all started up front
+        CompletableFuture<Twice> future = container.getInstanceAsync(Twice.class);
+        assertEquals(2, started.size());
+        started.get(0).complete("c1");
+        started.get(1).complete("c2");
+
+        // constructed on the async executor, not the completing thread
+        assertFalse(future.isDone());
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+
+        // like the synchronous lookup, each injection point gets its own instance
+        Twice twice = future.get();
+        assertEquals(2, started.size());
+        assertEquals("c1", twice.first);
+        assertEquals("c2", twice.second);
+
+        // followed through each injection point of bindings created per injection
+        container.getInstanceAsync(Pair.class);
+        assertEquals(6, started.size());
+    }
+
+    static class Pair {
+        @Inject Twice left;
+        @Inject Twice right;
+    }
+
+    static class Twice {
+        final String first;
+        final String second;
+
+        @Inject
+        Twice(@Inject("c") String first, @Inject("c") String second) {
+            this.first = first;
+            this.second = second;
+        }
+    }
+
     public void testInjectStatics() {
         new ContainerBuilder()
                 .constant("s", "test")
@@ -180,6 +1023,29 @@ public class ContainerTest extends TestCase {
         assertEquals(5, Static.i);
     }
 
+    public void testStartupProfile() {
+        ContainerBuilder builder = new ContainerBuilder()
+                .profileStartup()
+                .factory(Bar.class, Container.DEFAULT_NAME, BarImpl.class, Scope.SINGLETON)
+                .factory(Tee.class, TeeImpl.class)
+                .constant("s", "test")
+                .constant("i", 5)
+                .injectStatics(Static.class);
+        assertNull(builder.getStartupProfile());
+        builder.create(true);
+
+        StartupProfile profile = builder.getStartupProfile();
+        String json = profile.toJson();
+        assertTrue(json.contains("\"kind\":\"construct\",\"name\":\"" + BarImpl.class.getName()));
+        assertTrue(json.contains("\"kind\":\"statics\",\"name\":\"" + Static.class.getName()));
+        assertTrue(json.contains("findConstructorIn " + TeeImpl.class.getName()));
+
+        // the tee is injected into the bar through a method
+        String flameGraph = profile.toFlameGraph();
+        assertTrue(flameGraph, flameGraph.contains(";construct " + BarImpl.class.getName()
+                + ";injectors;construct " + TeeImpl.class.getName()));
+    }
+
     static class Static {
 
         @Inject("i")
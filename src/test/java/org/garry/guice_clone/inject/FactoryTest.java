@@ -1,20 +1,47 @@
 package org.garry.guice_clone.inject;
 
 import junit.framework.TestCase;
+import org.garry.gucie_clone.inject.Container;
 import org.garry.gucie_clone.inject.ContainerBuilder;
 import org.garry.gucie_clone.inject.Context;
 import org.garry.gucie_clone.inject.Factory;
 import org.garry.gucie_clone.inject.Inject;
+import org.garry.gucie_clone.inject.Scope;
 
 import java.lang.reflect.Member;
+import java.lang.reflect.Method;
 
 public class FactoryTest extends TestCase {
 
-    public void testInjection() {
+    public void testInjection() throws Exception {
         ContainerBuilder cb = new ContainerBuilder();
 
         // Called from getInstance
         cb.factory(Foo.class, createFactory(Foo.class, "default", null));
+
+        // Called directly from a constructor
+        cb.factory(Bar.class, "foobar", createFactory(Bar.class, "foobar",
+                Foo.class.getDeclaredConstructor(Bar.class)), Scope.DEFAULT);
+
+        // Called indirectly from a constructor, and from a field after it
+        cb.factory(Tee.class, "tee1", createFactory(Tee.class, "tee1",
+                Bar.class.getDeclaredConstructor(Tee.class)), Scope.DEFAULT);
+        cb.factory(Tee.class, "tee2", createFactory(Tee.class, "tee2",
+                Bar.class.getDeclaredField("tee2")), Scope.DEFAULT);
+
+        // Called from a method, twice
+        Method execute = Tee.class.getDeclaredMethod("execute", Bob.class, Bob.class);
+        cb.factory(Bob.class, "bob1", createFactory(Bob.class, "bob1", execute), Scope.DEFAULT);
+        cb.factory(Bob.class, "bob2", createFactory(Bob.class, "bob2", execute), Scope.DEFAULT);
+
+        Container c = cb.create(false);
+
+        Foo foo = c.getInstance(Foo.class);
+        assertNotNull(foo.bar);
+        assertNotNull(foo.bar.tee1);
+        assertNotNull(foo.bar.tee2);
+        assertNotNull(foo.bar.tee1.bob1);
+        assertNotNull(foo.bar.tee2.bob2);
     }
 
     <T> Factory<T> createFactory(final Class<T> type, final String name, final Member expectedMember) {
@@ -2,28 +2,84 @@ package org.garry.guice_clone.inject.util;
 
 import junit.framework.TestCase;
 import org.garry.gucie_clone.inject.util.FinalizableWeakReference;
+import org.garry.gucie_clone.inject.util.ReferenceCleanup;
+import org.garry.gucie_clone.inject.util.ReferenceMap;
+import org.garry.gucie_clone.inject.util.ReferenceType;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FinalizableReferenceQueueTest extends TestCase {
 
     public void testFinalizeReferentCalled(){
         MockReference reference = new MockReference();
         reference.enqueue();
+        awaitFinalized(reference);
+    }
+
+    public void testContinuousCleanup(){
+        // the cleanup thread keeps draining after the first reference
+        for (int i = 0; i < 3; i++) {
+            MockReference reference = new MockReference();
+            reference.enqueue();
+            awaitFinalized(reference);
+        }
+        assertTrue(ReferenceCleanup.getStats().getCleaned() >= 3);
+    }
+
+    public void testCleanupExecutor(){
+        final AtomicInteger batches = new AtomicInteger();
+        ReferenceCleanup.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                batches.incrementAndGet();
+                command.run();
+            }
+        });
+        try {
+            MockReference reference = new MockReference();
+            reference.enqueue();
+            awaitFinalized(reference);
+            assertTrue(batches.get() > 0);
+        } finally {
+            ReferenceCleanup.setExecutor(null);
+        }
+    }
+
+    public void testExpungeOnAccess(){
+        ReferenceMap<Object, String> map =
+                new ReferenceMap<Object, String>(ReferenceType.WEAK, ReferenceType.STRONG, true);
+        map.put(new Object(), "reclaimed");
+        long expunged = ReferenceCleanup.getStats().getExpunged();
+        // wait up to 5s
+        for (int i = 0; i < 50 && map.size() > 0; i++) {
+            System.gc();
+            sleep();
+        }
+        assertEquals(0, map.size());
+        assertEquals(expunged + 1, ReferenceCleanup.getStats().getExpunged());
+    }
+
+    static void awaitFinalized(MockReference reference){
         // wait up to 5s
         for (int i = 0; i < 50; i++) {
             if (reference.finalizeReferentCalled){
                 return;
             }
-            try {
-                Thread.sleep(10);
-            }catch (InterruptedException e){};
+            sleep();
         }
         fail();
     }
 
+    static void sleep(){
+        try {
+            Thread.sleep(10);
+        }catch (InterruptedException e){};
+    }
 
     static class MockReference extends FinalizableWeakReference<Object> {
 
-        boolean finalizeReferentCalled;
+        volatile boolean finalizeReferentCalled;
 
         public MockReference() {
             super(new Object());
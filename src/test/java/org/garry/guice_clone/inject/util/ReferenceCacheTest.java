@@ -0,0 +1,250 @@
+package org.garry.guice_clone.inject.util;
+
+import junit.framework.TestCase;
+import org.garry.gucie_clone.inject.util.CachePolicy;
+import org.garry.gucie_clone.inject.util.ReferenceCache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ReferenceCacheTest extends TestCase {
+
+    public void testLruEviction() {
+        CountingCache cache = new CountingCache(new CachePolicy<Integer, String>()
+                .maximumSize(3)
+                .eviction(CachePolicy.Eviction.LRU));
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+        cache.get(1);
+        cache.get(4);
+        cache.cleanUp();
+
+        assertEquals(3, cache.size());
+        assertTrue(cache.containsKey(1));
+        assertFalse(cache.containsKey(2));
+    }
+
+    public void testTinyLfuKeepsFrequentKeys() {
+        CountingCache cache = new CountingCache(new CachePolicy<Integer, String>()
+                .maximumSize(10));
+        for (int i = 0; i < 10; i++) {
+            for (int key = 0; key < 5; key++) {
+                cache.get(key);
+            }
+        }
+        // a scan of keys used once
+        for (int key = 100; key < 200; key++) {
+            cache.get(key);
+        }
+        cache.cleanUp();
+
+        assertTrue(cache.size() <= 10);
+        for (int key = 0; key < 5; key++) {
+            assertTrue(String.valueOf(key), cache.containsKey(key));
+        }
+    }
+
+    public void testMaximumWeight() {
+        CountingCache cache = new CountingCache(new CachePolicy<Integer, String>()
+                .maximumWeight(10, new CachePolicy.Weigher<Integer, String>() {
+                    @Override
+                    public int weigh(Integer key, String value) {
+                        return key;
+                    }
+                })
+                .eviction(CachePolicy.Eviction.LRU));
+        cache.get(4);
+        cache.get(5);
+        cache.get(3);
+        cache.cleanUp();
+
+        assertFalse(cache.containsKey(4));
+        assertTrue(cache.containsKey(5));
+        assertTrue(cache.containsKey(3));
+    }
+
+    public void testExpireAfterWrite() {
+        FakeTicker ticker = new FakeTicker();
+        CountingCache cache = new CountingCache(new CachePolicy<Integer, String>()
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .ticker(ticker));
+        cache.get(1);
+        ticker.advance(30, TimeUnit.SECONDS);
+        cache.get(1);
+        assertEquals(1, cache.creations.get());
+
+        ticker.advance(30, TimeUnit.SECONDS);
+        cache.get(1);
+        assertEquals(2, cache.creations.get());
+    }
+
+    public void testExpireAfterAccess() {
+        FakeTicker ticker = new FakeTicker();
+        CountingCache cache = new CountingCache(new CachePolicy<Integer, String>()
+                .expireAfterAccess(1, TimeUnit.MINUTES)
+                .ticker(ticker));
+        cache.get(1);
+        cache.get(2);
+        for (int i = 0; i < 3; i++) {
+            ticker.advance(30, TimeUnit.SECONDS);
+            cache.get(1);
+        }
+        cache.cleanUp();
+
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.creations.get());
+    }
+
+    public void testRefreshAfterWrite() {
+        FakeTicker ticker = new FakeTicker();
+        CountingCache cache = new CountingCache(new CachePolicy<Integer, String>()
+                .refreshAfterWrite(1, TimeUnit.MINUTES)
+                .executor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                })
+                .ticker(ticker));
+        assertEquals("1#1", cache.get(1));
+        ticker.advance(2, TimeUnit.MINUTES);
+        // returns the current value and refreshes it
+        assertEquals("1#1", cache.get(1));
+        assertEquals("1#2", cache.get(1));
+    }
+
+    public void testNestedLoads() {
+        ReferenceCache<Integer, String> cache = new ReferenceCache<Integer, String>() {
+            @Override
+            protected String create(Integer key) {
+                return key == 0 ? "0" : get(key - 1) + key;
+            }
+        };
+        assertEquals("0123", cache.get(3));
+        assertEquals(4, cache.size());
+    }
+
+    public void testRecursiveLoad() {
+        ReferenceCache<Integer, String> cache = new ReferenceCache<Integer, String>() {
+            @Override
+            protected String create(Integer key) {
+                return get(key == 1 ? 2 : 1);
+            }
+        };
+        try {
+            cache.get(1);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Recursive load"));
+        }
+        assertTrue(cache.isEmpty());
+    }
+
+    public void testLoadCycleAcrossThreads() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(2);
+        final ReferenceCache<Integer, String> cache = new ReferenceCache<Integer, String>() {
+            @Override
+            protected String create(Integer key) {
+                started.countDown();
+                try {
+                    started.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return get(key == 1 ? 2 : 1);
+            }
+        };
+        final AtomicReference<Throwable> first = new AtomicReference<Throwable>();
+        final AtomicReference<Throwable> second = new AtomicReference<Throwable>();
+        Thread a = loader(cache, 1, first);
+        Thread b = loader(cache, 2, second);
+        a.join(5000);
+        b.join(5000);
+
+        assertFalse(a.isAlive() || b.isAlive());
+        assertTrue(first.get() instanceof IllegalStateException);
+        assertTrue(second.get() instanceof IllegalStateException);
+        assertTrue(cache.isEmpty());
+    }
+
+    public void testConcurrentLoadsCreateOnce() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger creations = new AtomicInteger();
+        final ReferenceCache<Integer, String> cache = new ReferenceCache<Integer, String>() {
+            @Override
+            protected String create(Integer key) {
+                creations.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "value";
+            }
+        };
+        Thread[] threads = new Thread[8];
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = loader(cache, 1, failure);
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertNull(failure.get());
+        assertEquals(1, creations.get());
+        assertEquals("value", cache.getAsync(1).join());
+    }
+
+    static Thread loader(final ReferenceCache<Integer, String> cache, final int key,
+                         final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get(key);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    static class CountingCache extends ReferenceCache<Integer, String> {
+
+        private static final long serialVersionUID = 0;
+
+        final AtomicInteger creations = new AtomicInteger();
+
+        CountingCache(CachePolicy<Integer, String> policy) {
+            super(policy);
+        }
+
+        @Override
+        protected String create(Integer key) {
+            return key + "#" + creations.incrementAndGet();
+        }
+    }
+
+    static class FakeTicker implements CachePolicy.Ticker {
+
+        long nanos;
+
+        void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.garry.guice_clone.inject.util;
+
+import junit.framework.TestCase;
+import org.garry.gucie_clone.inject.util.ReferenceMap;
+import org.garry.gucie_clone.inject.util.ReferenceType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class ReferenceMapTest extends TestCase {
+
+    public void testWeakKeysUseIdentity() {
+        ReferenceMap<String, String> map =
+                new ReferenceMap<String, String>(ReferenceType.WEAK, ReferenceType.STRONG);
+        String a = new String("key");
+        String b = new String("key");
+        map.put(a, "a");
+        map.put(b, "b");
+
+        assertEquals(2, map.size());
+        assertEquals("a", map.get(a));
+        assertEquals("b", map.get(b));
+        assertNull(map.get("key"));
+        assertTrue(map.containsKey(a));
+
+        assertEquals("a", map.put(a, "c"));
+        assertEquals("c", map.remove(a));
+        assertFalse(map.containsKey(a));
+        assertEquals(1, map.size());
+    }
+
+    public void testEntries() {
+        ReferenceMap<Object, String> map =
+                new ReferenceMap<Object, String>(ReferenceType.SOFT, ReferenceType.STRONG);
+        List<Object> keys = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            Object key = new Object();
+            keys.add(key);
+            map.put(key, String.valueOf(i));
+        }
+
+        int count = 0;
+        for (Map.Entry<Object, String> entry : map.entrySet()) {
+            assertEquals(String.valueOf(keys.indexOf(entry.getKey())), entry.getValue());
+            count++;
+        }
+        assertEquals(100, count);
+        assertEquals(100, map.keySet().size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    public void testConcurrentPuts() throws InterruptedException {
+        final ReferenceMap<Object, Integer> map =
+                new ReferenceMap<Object, Integer>(ReferenceType.WEAK, ReferenceType.STRONG);
+        final Object[] keys = new Object[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Object();
+        }
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < keys.length; i += 4) {
+                        map.put(keys[i], i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(keys.length, map.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(Integer.valueOf(i), map.get(keys[i]));
+        }
+    }
+}